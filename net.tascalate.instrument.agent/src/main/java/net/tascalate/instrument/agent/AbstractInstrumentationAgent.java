@@ -33,9 +33,14 @@ package net.tascalate.instrument.agent;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.slf4j.Logger;
@@ -46,10 +51,19 @@ public abstract class AbstractInstrumentationAgent {
     protected final Logger log = LoggerFactory.getLogger(getClass());
     protected final String arguments;
     protected final Instrumentation instrumentation;
+    private final AgentOptions options;
+    private final ClassLoaderClassifier classLoaderClassifier;
+    // Union of selectors of transformers registered by attach(...), class loader scopes reference loaders weakly
+    private volatile ClassSelector retransformSelector = ClassSelectors.all();
+    // Guarded by this
+    private final Set<ClassFileTransformer> registeredTransformers = new LinkedHashSet<ClassFileTransformer>();
+    private BackgroundRetransformer backgroundRetransformer;
     
     protected AbstractInstrumentationAgent(String arguments, Instrumentation instrumentation) {
         this.arguments = arguments;
         this.instrumentation = instrumentation;
+        this.options = new AgentOptions(arguments);
+        this.classLoaderClassifier = new ClassLoaderClassifier(getClass().getClassLoader());
     }
     
     protected void install() throws Exception {
@@ -66,6 +80,7 @@ public abstract class AbstractInstrumentationAgent {
                 markTransformerPresence(t);
             }
         }
+        registerTransformers(visited);
         markTransformerPresence(this);
         log.info("Agent was installed");
     }
@@ -78,6 +93,7 @@ public abstract class AbstractInstrumentationAgent {
         extendedOwnPackages.add(packageNameOf(getClass()) + '.');
 
         Set<ClassFileTransformer> visited = new HashSet<ClassFileTransformer>();
+        List<ClassSelector> selectors = new ArrayList<ClassSelector>();
         boolean hasRetransformableTransformers = false;
         for (boolean canRetransform : RETRANSFORM_OPTIONS) {
             for (ClassFileTransformer t : createTransformers(canRetransform)) {
@@ -89,9 +105,13 @@ public abstract class AbstractInstrumentationAgent {
                 visited.add(t);
                 extendedOwnPackages.add(packageNameOf(t.getClass()) + '.');
                 hasRetransformableTransformers |= canRetransform;
+                selectors.add(t instanceof SelectiveClassFileTransformer ? 
+                              ((SelectiveClassFileTransformer)t).getClassSelector() : ClassSelectors.all());
             }
         }
         
+        registerTransformers(visited);
+        
         if (isSkipRetransformOptionSet()) {
             if (log.isInfoEnabled()) {
                 log.info("skipping re-transforming classes according to Java Agent argumentds supplied: " + arguments);
@@ -101,6 +121,7 @@ public abstract class AbstractInstrumentationAgent {
         } else if (!hasRetransformableTransformers) {
             log.info("No retransformable transformers registered, skipping re-transforming classes");
         } else {
+            retransformSelector = ClassSelectors.union(selectors);
             retransformClasses(extendedOwnPackages);
         }
         for (ClassFileTransformer t : visited) {
@@ -110,31 +131,100 @@ public abstract class AbstractInstrumentationAgent {
         log.info("Agent was attached dynamically");
     }
     
+    /**
+     * Re-transforms classes loaded before the agent was attached, the entry point used by 
+     * {@link #attach(Set)}. Classes are selected by selectors of the transformers registered 
+     * (see {@link SelectiveClassFileTransformer}), all classes are selected when no transformer 
+     * was registered yet.
+     * @param ownPackages package prefixes of agent classes that are never re-transformed
+     */
     protected void retransformClasses(Set<String> ownPackages) {
-        log.info("Re-transforming existing classes...");
+        retransformClasses(ownPackages, retransformSelector);
+    }
+    
+    protected void retransformClasses(Set<String> ownPackages, ClassSelector selector) {
+        if (log.isInfoEnabled()) {
+            log.info("Re-transforming existing classes, selected by " + selector + "...");
+        }
+        
+        List<Class<?>> classes = collectRetransformableClasses(ownPackages, selector);
+        BatchRetransformer retransformer = new BatchRetransformer(instrumentation, log, getRetransformBatchSize());
+        if (isBackgroundRetransformOptionSet()) {
+            startBackgroundRetransform(
+                new BackgroundRetransformer(retransformer, log, classes, getBackgroundRetransformBudget())
+            );
+            log.info("Existing classes will be re-transformed in background");
+            return;
+        }
         
-        ClassLoader systemClassLoader = ClassLoader.getSystemClassLoader();
-        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+        ParallelRetransformer parallelRetransformer = new ParallelRetransformer(retransformer, log, getRetransformParallelism()); 
+        RetransformStatistics stats = parallelRetransformer.retransform(classes);
+        
+        if (log.isInfoEnabled()) {
+            log.info("Existing classes was re-transormed, " + 
+                     "batch size = " + retransformer.batchSize() + ", " +
+                     "workers = " + parallelRetransformer.parallelism() + ", " + stats);
+        }
+    }
+    
+    /**
+     * Stops background re-transformation (if any) and removes all transformers 
+     * registered by {@link #install()} or {@link #attach(Set)}. Classes that were
+     * transformed already are not restored.
+     */
+    protected void detach() {
+        log.info("Detaching agent...");
+        List<ClassFileTransformer> transformers;
+        synchronized (this) {
+            if (null != backgroundRetransformer) {
+                backgroundRetransformer.stop();
+                backgroundRetransformer = null;
+            }
+            transformers = new ArrayList<ClassFileTransformer>(registeredTransformers);
+            registeredTransformers.clear();
+        }
+        for (ClassFileTransformer t : transformers) {
+            instrumentation.removeTransformer(t);
+        }
+        log.info("Agent was detached");
+    }
+    
+    private synchronized void registerTransformers(Collection<ClassFileTransformer> transformers) {
+        registeredTransformers.addAll(transformers);
+    }
+    
+    private synchronized void startBackgroundRetransform(BackgroundRetransformer retransformer) {
+        if (null != backgroundRetransformer) {
+            // Superseded by the new one
+            backgroundRetransformer.stop();
+        }
+        backgroundRetransformer = retransformer;
+        retransformer.start();
+    }
+    
+    protected List<Class<?>> collectRetransformableClasses(Set<String> ownPackages, ClassSelector selector) {
+        List<Class<?>> result = new ArrayList<Class<?>>();
+        PackagePrefixMatcher ownClasses = PackagePrefixMatcher.of(ownPackages);
+        for (Class<?> clazz : getCandidateClasses(selector)) {
             String className = clazz.getName();
             if (instrumentation.isModifiableClass(clazz)) {
-                if (isClassLoaderParent(systemClassLoader, clazz.getClassLoader())) {
+                if (classLoaderClassifier.isBootstrapOrPlatform(clazz.getClassLoader())) {
                     if (log.isTraceEnabled()) {
                         log.trace("Skip re-transforming boot or extension/platform class: " + className);
                     }
                     continue;
                 }
                 
-                boolean isOwnClass = false;
-                for (String ownPackage : ownPackages) {
-                    if (className.startsWith(ownPackage)) {
-                        isOwnClass = true;
-                        break;
+                if (ownClasses.matches(className)) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Skip re-transforming class (agent class): " + className);
                     }
+                    continue;
                 }
                 
-                if (isOwnClass) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Skip re-transforming class (agent class): " + className);
+                if (!selector.select(clazz)) {
+                    if (log.isTraceEnabled()) {
+                        log.trace("Skip re-transforming class (not selected by transformers): " + className);
                     }
                     continue;
                 }
@@ -142,28 +232,122 @@ public abstract class AbstractInstrumentationAgent {
                 if (log.isDebugEnabled()) {
                     log.debug("Re-transforming class: " + className);
                 }
-                try {
-                    instrumentation.retransformClasses(clazz);
-                } catch (Throwable e) {
-                    log.error("Error re-transofrming class "+ className, e);
-                }
+                result.add(clazz);
             } else {
                 if (log.isDebugEnabled()) {
                     log.debug("Non-modifiable class (re-transforming skipped): " + className);
                 }                    
             }
         }
-        log.info("Existing classes was re-transormed");
+        return result;
+    }
+    
+    private Collection<Class<?>> getCandidateClasses(ClassSelector selector) {
+        Collection<ClassLoader> classLoaders = ClassSelectors.classLoaderScopeOf(selector);
+        if (null == classLoaders) {
+            Class<?>[] classes = instrumentation.getAllLoadedClasses();
+            return Arrays.asList(classes);
+        }
+        // Classes may be initiated by several class loaders in scope
+        Set<Class<?>> result = Collections.newSetFromMap(new IdentityHashMap<Class<?>, Boolean>());
+        for (ClassLoader classLoader : classLoaders) {
+            Class<?>[] classes = instrumentation.getInitiatedClasses(classLoader);
+            result.addAll(Arrays.asList(classes));
+        }
+        return result;
+    }
+    
+    /**
+     * Number of classes passed to a single {@link Instrumentation#retransformClasses(Class...)} call.
+     * Every call is a separate VM operation, so larger batches mean fewer safepoints during attach. 
+     * Configured via <code>retransform-batch-size=N</code> agent option, by default 
+     * classes are re-transformed one by one.
+     * @return the size of the re-transformation batch
+     */
+    protected int getRetransformBatchSize() {
+        return getIntOption(RETRANSFORM_BATCH_SIZE_OPTION, 1);
+    }
+    
+    /**
+     * Number of worker threads used to re-transform existing classes. Transformers run 
+     * on the thread that requests re-transformation, so sharding classes across several
+     * workers parallelizes the transformation work itself. Configured via 
+     * <code>retransform-workers=N</code> agent option, by default classes are re-transformed 
+     * on the thread that attaches the agent; return <code>Runtime.getRuntime().availableProcessors()</code> 
+     * to use all cores.
+     * @return the number of re-transformation worker threads
+     */
+    protected int getRetransformParallelism() {
+        return getIntOption(RETRANSFORM_WORKERS_OPTION, 1);
+    }
+    
+    /**
+     * Maximum time (in milliseconds per second) that background re-transformation may spend 
+     * in re-transforming classes, see {@link #isBackgroundRetransformOptionSet()}. Configured via
+     * <code>retransform-budget=N</code> agent option, 50ms per second by default.
+     * @return the re-transformation time budget, in milliseconds per second
+     */
+    protected long getBackgroundRetransformBudget() {
+        return getIntOption(RETRANSFORM_BUDGET_OPTION, 50);
     }
     
     protected boolean isSkipRetransformOptionSet() {
-        return "skip-retransform".equals(arguments);
+        return options.isSet(SKIP_RETRANSFORM_OPTION);
+    }
+    
+    /**
+     * Whether existing classes should be re-transformed by a throttled daemon thread
+     * rather than synchronously during attach. Set via <code>background-retransform</code>
+     * agent option.
+     * @return true if background re-transformation is requested
+     */
+    protected boolean isBackgroundRetransformOptionSet() {
+        return options.isSet(BACKGROUND_RETRANSFORM_OPTION);
+    }
+    
+    private int getIntOption(String name, int defaultValue) {
+        String value = options.get(name);
+        if (null == value) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException ex) {
+            if (log.isWarnEnabled()) {
+                log.warn("Invalid value of Java Agent option \"" + name + "\": " + value + ", using default " + defaultValue);
+            }
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Shared, memoizing classifier of class loaders; transformers created by the agent 
+     * may use it to cheaply skip boot / platform classes.
+     * @return the class loader classifier
+     */
+    protected ClassLoaderClassifier getClassLoaderClassifier() {
+        return classLoaderClassifier;
     }
     
     protected Collection<ClassFileTransformer> createTransformers(boolean canRetransform) {
-        return Collections.emptySet();
+        Collection<ClassVisitorProvider> providers = createClassVisitorProviders(canRetransform);
+        if (null == providers || providers.isEmpty()) {
+            return Collections.emptySet();
+        } else {
+            return Collections.<ClassFileTransformer>singleton(new ClassVisitorPipeline(providers));
+        }
     }    
     
+    /**
+     * Creates visitor providers that are combined into a single {@link ClassVisitorPipeline} 
+     * by the default implementation of {@link #createTransformers(boolean)}
+     * @param canRetransform whether providers are for re-transformable transformer
+     * @return the visitor providers in the order of application
+     */
+    protected Collection<ClassVisitorProvider> createClassVisitorProviders(boolean canRetransform) {
+        return Collections.emptyList();
+    }
+    
     protected boolean markTransformerPresence(Object transformer) {
         if (null == transformer) {
             return false;
@@ -220,24 +404,6 @@ public abstract class AbstractInstrumentationAgent {
         return packagePrefixes;
     }    
     
-    /**
-     * Check if <code>maybeParent</code> is a parent (probably indirect) of the <code>classLoader</code>
-     * @param classLoader The class loader whose parents are checked, may not be null
-     * @param maybeParent Possible parent, may be null for boot class loader
-     * @return
-     */
-    private static boolean isClassLoaderParent(ClassLoader classLoader, ClassLoader maybeParent) {
-        ClassLoader cl = classLoader;
-        do {
-            cl = cl.getParent();
-            if (maybeParent == cl) {
-                // Check includes null == null for bootstrap classloader
-                return true;
-            }
-        } while (cl != null);
-        return false;
-    }
-    
     protected static final Collection<String> BASE_OWN_PACKAGES = Collections.unmodifiableSet(
         packagePrefixesOf(
             Logger.class, 
@@ -246,5 +412,11 @@ public abstract class AbstractInstrumentationAgent {
     );
     
     private static boolean[] RETRANSFORM_OPTIONS = {true, false};
+    
+    private static final String SKIP_RETRANSFORM_OPTION = "skip-retransform";
+    private static final String BACKGROUND_RETRANSFORM_OPTION = "background-retransform";
+    private static final String RETRANSFORM_BUDGET_OPTION = "retransform-budget";
+    private static final String RETRANSFORM_BATCH_SIZE_OPTION = "retransform-batch-size";
+    private static final String RETRANSFORM_WORKERS_OPTION = "retransform-workers";
 }
 
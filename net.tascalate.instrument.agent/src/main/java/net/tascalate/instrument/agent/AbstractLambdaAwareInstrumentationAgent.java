@@ -41,6 +41,20 @@ public abstract class AbstractLambdaAwareInstrumentationAgent extends AbstractIn
     }
     
     protected boolean attachLambdaInstrumentationHook(LambdaClassTransformer hook) throws Exception {
+        return attachLambdaInstrumentationHook(hook, 0);
+    }
+    
+    /**
+     * Registers lambda class transformer with the hook shared by all agents in the JVM.
+     * Transformers of all agents are applied in a single pass, in ascending <code>order</code>, 
+     * every transformer receives the output of the previous one.
+     * @param hook the transformer to register
+     * @param order the position of the transformer relative to the transformers of other agents
+     * @return <code>true</code> if the transformer is registered, <code>false</code> 
+     * if the JVM does not require lambda instrumentation patch (JDK 8 and below)
+     * @throws Exception if the patch may not be applied
+     */
+    protected boolean attachLambdaInstrumentationHook(LambdaClassTransformer hook, int order) throws Exception {
         int jdkVersion = getJdkVersion(); 
         if (jdkVersion < 9) {
             if (log.isDebugEnabled()) {
@@ -52,14 +66,21 @@ public abstract class AbstractLambdaAwareInstrumentationAgent extends AbstractIn
         // Need to patch lambda metafactory to support agent instrumentation for lambda classes
         // in JDK 9+
         try {
+            if (RuntimeBytecodeInjector.isLegacyInjectionApplied()) {
+                log.warn("Lambda post-processing injection via System.out was already applied by some other (older) agent, re-using it.");
+                RuntimeBytecodeInjector.installLegacyTransformer(hook);
+                return true;
+            }
+            // Hook class must be available before any lambda is created by the patched code
+            RuntimeBytecodeInjector.installHook(instrumentation);
             if (!RuntimeBytecodeInjector.isInjectionApplied()) {
                 log.debug("Applying lambda post-processing injection...");
                 instrumentation.redefineClasses(RuntimeBytecodeInjector.modifyLambdaMetafactory());
                 log.debug("Lambda post-processing injection is applied.");
             } else {
-                log.warn("Lambda post-processing injection was already applied, probably by some other agent.");
+                log.debug("Lambda post-processing injection was already applied, probably by some other agent.");
             }
-            RuntimeBytecodeInjector.installTransformer(hook);
+            RuntimeBytecodeInjector.installTransformer(hook, order);
             return true;
         } catch (Error ex) {
             log.warn("Unable to apply lambda instrumentation patch (unsupported JVM)", ex);
@@ -70,6 +91,20 @@ public abstract class AbstractLambdaAwareInstrumentationAgent extends AbstractIn
         }
     }
     
+    /**
+     * Unregisters lambda class transformer registered with 
+     * {@link #attachLambdaInstrumentationHook(LambdaClassTransformer, int)}
+     * @param hook the transformer to unregister
+     * @return <code>true</code> if the transformer was registered
+     * @throws Exception if the shared hook is not accessible
+     */
+    protected boolean detachLambdaInstrumentationHook(LambdaClassTransformer hook) throws Exception {
+        if (getJdkVersion() < 9 || RuntimeBytecodeInjector.isLegacyInjectionApplied()) {
+            return false;
+        }
+        return RuntimeBytecodeInjector.uninstallTransformer(hook);
+    }
+    
     protected LambdaClassTransformer createLambdaClassTransformer(final ClassFileTransformer transformer) {
         return new LambdaClassTransformer() {
             @Override
@@ -79,6 +114,25 @@ public abstract class AbstractLambdaAwareInstrumentationAgent extends AbstractIn
         };
     }
     
+    /**
+     * Creates lambda class transformer that is invoked only for lambdas defined in classes 
+     * selected by <code>lambdaOwnerSelector</code>, like {@link ClassSelectors#packages(String...)}.
+     * The decision is cached per owning class, so lambdas of uninteresting classes 
+     * skip the transformer without any further processing.
+     * @param transformer the class file transformer to apply to lambda classes
+     * @param lambdaOwnerSelector the selector of classes whose lambdas should be transformed
+     * @return the lambda class transformer
+     */
+    protected LambdaClassTransformer createLambdaClassTransformer(ClassFileTransformer transformer, 
+                                                                  ClassSelector lambdaOwnerSelector) {
+        LambdaClassTransformer result = createLambdaClassTransformer(transformer);
+        if (null == lambdaOwnerSelector || lambdaOwnerSelector == ClassSelectors.all()) {
+            return result;
+        } else {
+            return new SelectiveLambdaClassTransformer(result, lambdaOwnerSelector);
+        }
+    }
+    
     protected String readLambdaClassName(byte[] bytes) throws Exception {
         return "<unknown-lambda>";
     }
@@ -0,0 +1,76 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Java Agent arguments parsed as a comma-separated list of options, where every
+ * option is either a flag (<code>skip-retransform</code>) or a key-value pair
+ * (<code>retransform-budget=50</code>).
+ * 
+ * @author vsilaev
+ */
+class AgentOptions {
+    private final Map<String, String> options;
+    
+    AgentOptions(String arguments) {
+        if (null == arguments || arguments.length() == 0) {
+            options = Collections.emptyMap();
+        } else {
+            Map<String, String> parsed = new HashMap<String, String>();
+            for (String option : arguments.split(",")) {
+                option = option.trim();
+                if (option.length() == 0) {
+                    continue;
+                }
+                int eq = option.indexOf('=');
+                if (eq < 0) {
+                    parsed.put(option, "");
+                } else {
+                    parsed.put(option.substring(0, eq).trim(), option.substring(eq + 1).trim());
+                }
+            }
+            options = Collections.unmodifiableMap(parsed);
+        }
+    }
+    
+    boolean isSet(String name) {
+        return options.containsKey(name);
+    }
+    
+    String get(String name) {
+        return options.get(name);
+    }
+}
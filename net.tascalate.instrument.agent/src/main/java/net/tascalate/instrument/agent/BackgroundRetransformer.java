@@ -0,0 +1,144 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+
+/**
+ * Re-transforms classes in small chunks on a daemon thread to limit the impact on
+ * the running application. The time spent in re-transformation is kept within the
+ * budget of <code>budgetMillis</code> per second: after every chunk the thread sleeps
+ * proportionally to the pause measured. The chunk size is adapted to keep every single
+ * pause well below the budget.
+ * 
+ * @author vsilaev
+ */
+class BackgroundRetransformer implements Runnable {
+    private static final int MIN_CHUNK_SIZE = 1;
+    private static final int MAX_CHUNK_SIZE = 1024;
+    private static final int INITIAL_CHUNK_SIZE = 16;
+    
+    private final BatchRetransformer retransformer;
+    private final Logger log;
+    private final long budgetMillis;
+    private final long targetPauseNanos;
+    private final Class<?>[] classes;
+    
+    private volatile boolean stopped;
+    private volatile Thread thread;
+    
+    BackgroundRetransformer(BatchRetransformer retransformer, Logger log, List<Class<?>> classes, long budgetMillis) {
+        this.retransformer = retransformer;
+        this.log = log;
+        this.classes = classes.toArray(new Class<?>[classes.size()]);
+        this.budgetMillis = Math.max(1, Math.min(budgetMillis, 1000));
+        // Split the budget over several pauses per second to smooth latency
+        this.targetPauseNanos = Math.max(1000000L, this.budgetMillis * 1000000L / 4);
+    }
+    
+    void start() {
+        Thread thread = new Thread(this, "tascalate-instrument-background-retransform");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        this.thread = thread;
+        thread.start();
+    }
+    
+    /**
+     * Stops re-transformation after the chunk in progress (if any), 
+     * a thread sleeping between chunks is woken up
+     */
+    void stop() {
+        stopped = true;
+        Thread thread = this.thread;
+        if (null != thread) {
+            thread.interrupt();
+        }
+    }
+    
+    @Override
+    public void run() {
+        if (log.isInfoEnabled()) {
+            log.info("Background re-transformation of " + classes.length + " classes started, budget = " + budgetMillis + "ms/s");
+        }
+        RetransformStatistics total = new RetransformStatistics();
+        long startTime = System.nanoTime();
+        int chunkSize = INITIAL_CHUNK_SIZE;
+        int position = 0;
+        try {
+            while (position < classes.length && !stopped) {
+                int end = Math.min(position + chunkSize, classes.length);
+                Class<?>[] chunk = new Class<?>[end - position];
+                System.arraycopy(classes, position, chunk, 0, chunk.length);
+                // Do not pin classes (and their loaders) once processed
+                for (int i = position; i < end; i++) {
+                    classes[i] = null;
+                }
+                position = end;
+                
+                RetransformStatistics stats = retransformer.retransformBatch(chunk);
+                total.add(stats);
+                if (log.isDebugEnabled()) {
+                    log.debug("Background re-transformation of chunk: " + stats);
+                }
+                
+                chunkSize = adaptChunkSize(chunkSize, stats.elapsedNanos);
+                long pauseNanos = stats.elapsedNanos * (1000 - budgetMillis) / budgetMillis;
+                if (pauseNanos > 0 && position < classes.length) {
+                    Thread.sleep(pauseNanos / 1000000L, (int)(pauseNanos % 1000000L));
+                }
+            }
+        } catch (InterruptedException ex) {
+            if (!stopped) {
+                log.warn("Background re-transformation was interrupted");
+            }
+        } catch (Throwable ex) {
+            log.error("Background re-transformation failed", ex);
+        }
+        if (log.isInfoEnabled()) {
+            log.info("Background re-transformation " + (position < classes.length ? "stopped" : "completed") + ": " + 
+                     total + ", wall time=" + (System.nanoTime() - startTime) / 1000000L + "ms");
+        }
+    }
+    
+    private int adaptChunkSize(int chunkSize, long elapsedNanos) {
+        if (elapsedNanos > targetPauseNanos) {
+            return Math.max(MIN_CHUNK_SIZE, chunkSize / 2);
+        } else if (elapsedNanos < targetPauseNanos / 2) {
+            return Math.min(MAX_CHUNK_SIZE, chunkSize * 2);
+        } else {
+            return chunkSize;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.lang.instrument.Instrumentation;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+/**
+ * Re-transforms classes in batches -- one {@link Instrumentation#retransformClasses(Class...)}
+ * call per batch instead of one call per class. If a batch is rejected then it's split 
+ * in halves recursively until the failing class(es) are isolated, so a single bad class 
+ * does not prevent the rest of the batch from being re-transformed.
+ * 
+ * @author vsilaev
+ */
+class BatchRetransformer {
+    private final Instrumentation instrumentation;
+    private final Logger log;
+    private final int batchSize;
+    
+    BatchRetransformer(Instrumentation instrumentation, Logger log, int batchSize) {
+        this.instrumentation = instrumentation;
+        this.log = log;
+        this.batchSize = Math.max(1, batchSize);
+    }
+    
+    int batchSize() {
+        return batchSize;
+    }
+    
+    RetransformStatistics retransform(List<Class<?>> classes) {
+        RetransformStatistics total = new RetransformStatistics();
+        int size = classes.size();
+        int batchCount = (size + batchSize - 1) / batchSize;
+        for (int start = 0, batchNo = 1; start < size; start += batchSize, batchNo++) {
+            int end = Math.min(start + batchSize, size);
+            Class<?>[] batch = classes.subList(start, end).toArray(new Class<?>[end - start]);
+            RetransformStatistics stats = retransformBatch(batch);
+            if (batchSize > 1 && log.isInfoEnabled()) {
+                log.info("Re-transformed batch " + batchNo + " of " + batchCount + ": " + stats);
+            }
+            total.add(stats);
+        }
+        return total;
+    }
+    
+    RetransformStatistics retransformBatch(Class<?>[] batch) {
+        RetransformStatistics stats = new RetransformStatistics();
+        long startTime = System.nanoTime();
+        retransform(batch, 0, batch.length, stats);
+        stats.elapsedNanos = System.nanoTime() - startTime;
+        return stats;
+    }
+    
+    private void retransform(Class<?>[] classes, int from, int to, RetransformStatistics stats) {
+        int size = to - from;
+        if (size <= 0) {
+            return;
+        }
+        Class<?>[] slice = from == 0 && to == classes.length ? classes : Arrays.copyOfRange(classes, from, to);
+        stats.vmOperations++;
+        try {
+            instrumentation.retransformClasses(slice);
+            stats.classes += size;
+        } catch (Throwable ex) {
+            if (size == 1) {
+                stats.classes++;
+                stats.failedClasses++;
+                log.error("Error re-transofrming class " + classes[from].getName(), ex);
+            } else {
+                // Bisect to isolate failing class(es)
+                if (log.isDebugEnabled()) {
+                    log.debug("Error re-transforming batch of " + size + " classes, splitting: " + ex);
+                }
+                int middle = from + size / 2;
+                retransform(classes, from, middle, stats);
+                retransform(classes, middle, to, stats);
+            }
+        }
+    }
+}
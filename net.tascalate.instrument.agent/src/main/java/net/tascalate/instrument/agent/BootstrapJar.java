@@ -0,0 +1,257 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Helper JAR with classes to append to the bootstrap class path.
+ * <p>
+ * The JAR is content-addressed: its file name is derived from a hash of the embedded
+ * classes, so it's written once per agent version and then reused by every JVM sharing 
+ * the same cache directory rather than created on every install. The cache directory 
+ * is used only when it is owned by the current user and is not writable by group 
+ * or others (a missing directory is created accessible to the owner only), and an 
+ * existing JAR is compared with the expected content before use -- its classes are 
+ * loaded by the bootstrap class loader. Otherwise a temporary JAR deleted on exit 
+ * is used.
+ */
+final class BootstrapJar {
+    
+    static final String CACHE_DIRECTORY_PROPERTY = "net.tascalate.instrument.agent.cache.dir";
+    
+    private BootstrapJar() {}
+    
+    static JarFile of(String prefix, String... classNames) throws IOException {
+        SortedMap<String, byte[]> content = new TreeMap<String, byte[]>();
+        for (String className : classNames) {
+            String resourceName = className.replace('.', '/') + ".class";
+            content.put(resourceName, readResource(resourceName));
+        }
+        
+        File directory = cacheDirectory();
+        if (!directory.exists()) {
+            createPrivateDirectory(directory);
+        }
+        if (directory.isDirectory() && isPrivateDirectory(directory)) {
+            File cachedJar = new File(directory, prefix + '-' + digestOf(content) + ".jar");
+            try {
+                if (ensureCached(cachedJar, content)) {
+                    return new JarFile(cachedJar);
+                }
+            } catch (IOException ex) {
+                // Fall back to the temporary JAR
+            }
+        }
+        
+        File temporaryJar = File.createTempFile(prefix, ".jar");
+        temporaryJar.deleteOnExit();
+        writeJar(temporaryJar, content);
+        return new JarFile(temporaryJar);
+    }
+    
+    private static boolean ensureCached(File cachedJar, Map<String, byte[]> content) throws IOException {
+        if (cachedJar.isFile() && hasContent(cachedJar, content)) {
+            return true;
+        }
+        
+        File stagingJar = File.createTempFile("tal-staging", ".tmp", cachedJar.getParentFile());
+        try {
+            writeJar(stagingJar, content);
+            if (!stagingJar.renameTo(cachedJar)) {
+                // Either created concurrently by another process, or 
+                // the target may not be replaced on this platform (Windows)
+                if (!(cachedJar.isFile() && hasContent(cachedJar, content))) {
+                    return cachedJar.delete() && stagingJar.renameTo(cachedJar);
+                }
+            }
+            return true;
+        } finally {
+            stagingJar.delete();
+        }
+    }
+    
+    private static boolean hasContent(File jar, Map<String, byte[]> content) {
+        try {
+            JarFile jarFile = new JarFile(jar, false);
+            try {
+                int count = 0;
+                for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                    JarEntry entry = entries.nextElement();
+                    byte[] expected = content.get(entry.getName());
+                    if (null == expected || !Arrays.equals(expected, readFully(jarFile.getInputStream(entry)))) {
+                        return false;
+                    }
+                    count++;
+                }
+                return count == content.size();
+            } finally {
+                jarFile.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+    
+    private static void writeJar(File jar, Map<String, byte[]> content) throws IOException {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+    
+    private static String digestOf(SortedMap<String, byte[]> content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+            byte[] value = entry.getValue();
+            digest.update(entry.getKey().getBytes("UTF-8"));
+            digest.update((byte)0);
+            digest.update(new byte[] {
+                (byte)(value.length >>> 24), (byte)(value.length >>> 16), (byte)(value.length >>> 8), (byte)value.length
+            });
+            digest.update(value);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder result = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            result.append(HEX_DIGITS[(hash[i] >>> 4) & 0x0F]).append(HEX_DIGITS[hash[i] & 0x0F]);
+        }
+        return result.toString();
+    }
+    
+    private static File cacheDirectory() {
+        String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        if (null != directory && directory.length() > 0) {
+            return new File(directory);
+        }
+        String userName = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(System.getProperty("java.io.tmpdir"), "tascalate-instrument-" + userName);
+    }
+    
+    private static void createPrivateDirectory(File directory) {
+        if (directory.mkdirs()) {
+            // Owner-only access; permissions are verified anyway before use
+            directory.setReadable(false, false);
+            directory.setReadable(true, true);
+            directory.setWritable(false, false);
+            directory.setWritable(true, true);
+            directory.setExecutable(false, false);
+            directory.setExecutable(true, true);
+        }
+    }
+    
+    private static boolean isPrivateDirectory(File directory) {
+        try {
+            Path path = directory.toPath();
+            UserPrincipal owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS);
+            if (!owner.equals(currentUser())) {
+                return false;
+            }
+            Set<PosixFilePermission> permissions;
+            try {
+                permissions = Files.getPosixFilePermissions(path, LinkOption.NOFOLLOW_LINKS);
+            } catch (UnsupportedOperationException ex) {
+                // Not a POSIX file system (Windows), owner check is all we can do
+                return true;
+            }
+            return !permissions.contains(PosixFilePermission.GROUP_WRITE) && 
+                   !permissions.contains(PosixFilePermission.OTHERS_WRITE);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+    
+    private static UserPrincipal currentUser() throws IOException {
+        // The owner of a file just created is the current user by definition
+        File probe = File.createTempFile("tal-probe", ".tmp");
+        try {
+            return Files.getOwner(probe.toPath(), LinkOption.NOFOLLOW_LINKS);
+        } finally {
+            probe.delete();
+        }
+    }
+    
+    private static byte[] readResource(String resourceName) throws IOException {
+        InputStream in = BootstrapJar.class.getResourceAsStream('/' + resourceName);
+        if (null == in) {
+            throw new IOException("Class resource not found: " + resourceName);
+        }
+        return readFully(in);
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        try {
+            int size;
+            while ((size = in.read(buffer)) > 0) {
+                out.write(buffer, 0, size);
+            }
+        } finally {
+            try { in.close(); } catch (IOException exIgnore) {}
+        }
+        return out.toByteArray();
+    }
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+}
@@ -0,0 +1,210 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * <p>Classifies class loaders relative to the system class loader and the agent's 
+ * own class loader. Results are memoized per class loader instance, so the cost of walking 
+ * the class loader hierarchy scales with the number of distinct class loaders rather than 
+ * with the number of classes. Class loaders are referenced weakly and compared by identity, 
+ * so the cache never prevents them from being unloaded.
+ * 
+ * @author vsilaev
+ */
+public final class ClassLoaderClassifier {
+    
+    public static enum Kind {
+        /**
+         * Bootstrap class loader or any parent of the system class loader 
+         * (extension class loader for Java 1.6 - 1.8, platform class loader for Java 9+)
+         */
+        BOOTSTRAP_OR_PLATFORM,
+        /**
+         * The system class loader
+         */
+        SYSTEM,
+        /**
+         * The class loader of the agent itself, when it differs from the system class loader
+         */
+        AGENT,
+        /**
+         * Any other class loader
+         */
+        APPLICATION
+    }
+    
+    private final ClassLoader systemClassLoader;
+    private final WeakReference<ClassLoader> agentClassLoaderRef;
+    // Keys are mapped to themselves, the kind is stored in the key
+    private final ConcurrentMap<Object, WeakKey> cache = new ConcurrentHashMap<Object, WeakKey>();
+    private final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+    // Classes of the same class loader usually come in a row, so the last result 
+    // is checked first -- without a lookup key allocated and without hashing
+    private volatile WeakKey lastHit;
+    
+    public ClassLoaderClassifier(ClassLoader agentClassLoader) {
+        this.systemClassLoader = ClassLoader.getSystemClassLoader();
+        this.agentClassLoaderRef = new WeakReference<ClassLoader>(agentClassLoader);
+    }
+    
+    public Kind classify(ClassLoader classLoader) {
+        if (null == classLoader) {
+            return Kind.BOOTSTRAP_OR_PLATFORM;
+        }
+        if (classLoader == systemClassLoader) {
+            return Kind.SYSTEM;
+        }
+        WeakKey entry = lastHit;
+        if (null != entry && entry.get() == classLoader) {
+            return entry.kind;
+        }
+        entry = cache.get(new LookupKey(classLoader));
+        if (null == entry) {
+            expungeStaleEntries();
+            entry = new WeakKey(classLoader, computeKind(classLoader), queue);
+            WeakKey existing = cache.putIfAbsent(entry, entry);
+            if (null != existing) {
+                entry = existing;
+            }
+        }
+        lastHit = entry;
+        return entry.kind;
+    }
+    
+    public Kind classify(Class<?> clazz) {
+        return classify(clazz.getClassLoader());
+    }
+    
+    public boolean isBootstrapOrPlatform(ClassLoader classLoader) {
+        return classify(classLoader) == Kind.BOOTSTRAP_OR_PLATFORM;
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getName() + "[cached-class-loaders=" + cache.size() + "]";
+    }
+    
+    private Kind computeKind(ClassLoader classLoader) {
+        if (isClassLoaderParent(systemClassLoader, classLoader)) {
+            return Kind.BOOTSTRAP_OR_PLATFORM;
+        } else if (classLoader == agentClassLoaderRef.get()) {
+            return Kind.AGENT;
+        } else {
+            return Kind.APPLICATION;
+        }
+    }
+    
+    private void expungeStaleEntries() {
+        Object stale;
+        while (null != (stale = queue.poll())) {
+            cache.remove(stale);
+        }
+    }
+    
+    /**
+     * Check if <code>maybeParent</code> is a parent (probably indirect) of the <code>classLoader</code>
+     * @param classLoader The class loader whose parents are checked, may not be null
+     * @param maybeParent Possible parent, may be null for boot class loader
+     * @return
+     */
+    private static boolean isClassLoaderParent(ClassLoader classLoader, ClassLoader maybeParent) {
+        ClassLoader cl = classLoader;
+        do {
+            cl = cl.getParent();
+            if (maybeParent == cl) {
+                // Check includes null == null for bootstrap classloader
+                return true;
+            }
+        } while (cl != null);
+        return false;
+    }
+    
+    private static final class WeakKey extends WeakReference<ClassLoader> {
+        final Kind kind;
+        private final int hash;
+        
+        WeakKey(ClassLoader classLoader, Kind kind, ReferenceQueue<ClassLoader> queue) {
+            super(classLoader, queue);
+            this.kind = kind;
+            hash = System.identityHashCode(classLoader);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            } else if (other instanceof WeakKey) {
+                Object referent = get();
+                return null != referent && referent == ((WeakKey)other).get();
+            } else if (other instanceof LookupKey) {
+                Object referent = get();
+                return null != referent && referent == ((LookupKey)other).classLoader;
+            } else {
+                return false;
+            }
+        }
+    }
+    
+    private static final class LookupKey {
+        final ClassLoader classLoader;
+        
+        LookupKey(ClassLoader classLoader) {
+            this.classLoader = classLoader;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(classLoader);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof WeakKey) {
+                return classLoader == ((WeakKey)other).get();
+            } else if (other instanceof LookupKey) {
+                return classLoader == ((LookupKey)other).classLoader;
+            } else {
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,253 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+public final class ClassSelectors {
+    
+    private ClassSelectors() {}
+    
+    public static ClassSelector all() {
+        return ALL;
+    }
+    
+    /**
+     * Selects classes from the packages specified and their sub-packages
+     * @param packageNames names of the packages, like <code>com.mycompany.services</code>
+     * @return the selector
+     */
+    public static ClassSelector packages(String... packageNames) {
+        return packages(Arrays.asList(packageNames));
+    }
+    
+    public static ClassSelector packages(Collection<String> packageNames) {
+        final PackagePrefixMatcher matcher = PackagePrefixMatcher.ofPackages(packageNames);
+        return new ClassSelector() {
+            @Override
+            public boolean select(Class<?> clazz) {
+                return matcher.matches(clazz.getName());
+            }
+            
+            @Override
+            public String toString() {
+                return "packages" + matcher.prefixes();
+            }
+        };
+    }
+    
+    /**
+     * Selects classes defined by the class loaders specified. Agent enumerates 
+     * candidate classes via {@link java.lang.instrument.Instrumentation#getInitiatedClasses(ClassLoader)}
+     * rather than inspecting all loaded classes. Class loaders are referenced weakly, 
+     * so the selector doesn't prevent them from being unloaded.
+     * @param classLoaders class loaders in scope
+     * @return the selector
+     */
+    public static ClassSelector classLoaders(ClassLoader... classLoaders) {
+        return new ClassLoaderScope(Arrays.asList(classLoaders));
+    }
+    
+    public static ClassSelector anyOf(ClassSelector... selectors) {
+        return anyOf(Arrays.asList(selectors));
+    }
+    
+    public static ClassSelector anyOf(Collection<? extends ClassSelector> selectors) {
+        final List<ClassSelector> members = new ArrayList<ClassSelector>();
+        for (ClassSelector selector : selectors) {
+            if (null == selector || selector == ALL) {
+                return ALL;
+            }
+            members.add(selector);
+        }
+        if (members.size() == 1) {
+            return members.get(0);
+        }
+        return new ClassSelector() {
+            @Override
+            public boolean select(Class<?> clazz) {
+                for (ClassSelector selector : members) {
+                    if (selector.select(clazz)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            @Override
+            public String toString() {
+                return "anyOf" + members;
+            }
+        };
+    }
+    
+    public static ClassSelector allOf(ClassSelector... selectors) {
+        final List<ClassSelector> members = new ArrayList<ClassSelector>();
+        for (ClassSelector selector : selectors) {
+            if (null != selector && selector != ALL) {
+                members.add(selector);
+            }
+        }
+        if (members.isEmpty()) {
+            return ALL;
+        } else if (members.size() == 1) {
+            return members.get(0);
+        }
+        return new ClassSelector() {
+            @Override
+            public boolean select(Class<?> clazz) {
+                for (ClassSelector selector : members) {
+                    if (!selector.select(clazz)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            
+            @Override
+            public String toString() {
+                return "allOf" + members;
+            }
+        };
+    }
+    
+    /**
+     * Class loaders whose initiated classes cover everything the selector may select.
+     * @param selector the selector
+     * @return class loaders that are not unloaded yet or null if all loaded classes should be inspected 
+     */
+    static Collection<ClassLoader> classLoaderScopeOf(ClassSelector selector) {
+        if (selector instanceof ClassLoaderScope) {
+            return ((ClassLoaderScope)selector).classLoaders();
+        } else {
+            return null;
+        }
+    }
+    
+    static ClassSelector union(Collection<? extends ClassSelector> selectors) {
+        ClassSelector result = anyOf(selectors);
+        if (result == ALL) {
+            return ALL;
+        }
+        // Preserve class loader scope when every member is scoped
+        Set<ClassLoader> classLoaders = new LinkedHashSet<ClassLoader>();
+        for (ClassSelector selector : selectors) {
+            Collection<ClassLoader> scope = classLoaderScopeOf(selector);
+            if (null == scope) {
+                return result;
+            }
+            classLoaders.addAll(scope);
+        }
+        return new ClassLoaderScope(classLoaders, result);
+    }
+    
+    private static class ClassLoaderScope implements ClassSelector {
+        // Selectors may be kept for the agent's lifetime, so they must not pin class loaders
+        private final List<Reference<ClassLoader>> classLoaderRefs;
+        private final boolean includesBootstrap;
+        private final ClassSelector delegate;
+        
+        ClassLoaderScope(Collection<ClassLoader> classLoaders) {
+            this(classLoaders, null);
+        }
+        
+        ClassLoaderScope(Collection<ClassLoader> classLoaders, ClassSelector delegate) {
+            List<Reference<ClassLoader>> refs = new ArrayList<Reference<ClassLoader>>(classLoaders.size());
+            boolean bootstrap = false;
+            for (ClassLoader classLoader : classLoaders) {
+                if (null == classLoader) {
+                    bootstrap = true;
+                } else {
+                    refs.add(new WeakReference<ClassLoader>(classLoader));
+                }
+            }
+            this.classLoaderRefs = refs;
+            this.includesBootstrap = bootstrap;
+            this.delegate = delegate;
+        }
+        
+        Collection<ClassLoader> classLoaders() {
+            List<ClassLoader> result = new ArrayList<ClassLoader>(classLoaderRefs.size() + 1);
+            if (includesBootstrap) {
+                result.add(null);
+            }
+            for (Reference<ClassLoader> ref : classLoaderRefs) {
+                ClassLoader classLoader = ref.get();
+                if (null != classLoader) {
+                    result.add(classLoader);
+                }
+            }
+            return result;
+        }
+        
+        @Override
+        public boolean select(Class<?> clazz) {
+            if (null != delegate) {
+                return delegate.select(clazz);
+            }
+            ClassLoader classLoader = clazz.getClassLoader();
+            if (null == classLoader) {
+                return includesBootstrap;
+            }
+            for (Reference<ClassLoader> ref : classLoaderRefs) {
+                if (ref.get() == classLoader) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        @Override
+        public String toString() {
+            return null != delegate ? delegate.toString() : "classLoaders" + classLoaders();
+        }
+    }
+    
+    private static final ClassSelector ALL = new ClassSelector() {
+        @Override
+        public boolean select(Class<?> clazz) {
+            return true;
+        }
+        
+        @Override
+        public String toString() {
+            return "all";
+        }
+    };
+}
@@ -0,0 +1,149 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.Collection;
+
+import net.tascalate.asmx.ClassReader;
+import net.tascalate.asmx.ClassVisitor;
+import net.tascalate.asmx.ClassWriter;
+import net.tascalate.asmx.Opcodes;
+
+/**
+ * <p>The {@link ClassFileTransformer} that chains visitors contributed by several 
+ * {@link ClassVisitorProvider}-s over a single parse and a single write of the class file, 
+ * rather than registering a separate transformer (with own parse / write cycle) per transformation.
+ * Visitors receive events in the order of providers. Frames are expanded when any of the providers 
+ * that are interested in the class needs expanded frames, and computed (at most once) when any of them 
+ * requires so -- both may be necessary for the same class. When no provider 
+ * is interested in the class it is left intact without writing anything.
+ * 
+ * @author vsilaev
+ */
+public class ClassVisitorPipeline implements ClassFileTransformer {
+    private final ClassVisitorProvider[] providers;
+    
+    public ClassVisitorPipeline(ClassVisitorProvider... providers) {
+        this(Arrays.asList(providers));
+    }
+    
+    public ClassVisitorPipeline(Collection<? extends ClassVisitorProvider> providers) {
+        this.providers = providers.toArray(new ClassVisitorProvider[providers.size()]);
+    }
+    
+    @Override
+    public byte[] transform(ClassLoader loader, 
+                            String className, 
+                            Class<?> classBeingRedefined, 
+                            ProtectionDomain protectionDomain, 
+                            byte[] classfileBuffer) throws IllegalClassFormatException {
+        
+        ClassReader reader = new ClassReader(classfileBuffer);
+        if (null == className) {
+            // Lambda classes
+            className = reader.getClassName();
+        }
+        
+        Tail tail = new Tail();
+        ClassVisitor chain = tail;
+        boolean isInterested = false;
+        boolean expandFrames = false;
+        boolean computeFrames = false;
+        for (int i = providers.length - 1; i >= 0; i--) {
+            ClassVisitorProvider provider = providers[i];
+            ClassVisitor visitor = provider.createClassVisitor(chain, loader, className, classBeingRedefined, protectionDomain);
+            if (null != visitor && visitor != chain) {
+                chain = visitor;
+                isInterested = true;
+                ClassVisitorProvider.FrameMode frameMode = provider.getFrameMode();
+                expandFrames  |= frameMode == ClassVisitorProvider.FrameMode.EXPAND;
+                computeFrames |= frameMode == ClassVisitorProvider.FrameMode.COMPUTE;
+            }
+        }
+        if (!isInterested) {
+            // Nobody is interested
+            return null;
+        }
+        
+        // Reader and writer flags are independent: a visitor that needs expanded frames 
+        // still gets them when frames are recomputed afterwards because of another visitor
+        int readerFlags;
+        if (expandFrames) {
+            readerFlags = ClassReader.EXPAND_FRAMES;
+        } else if (computeFrames) {
+            // Frames will be recomputed anyway
+            readerFlags = ClassReader.SKIP_FRAMES;
+        } else {
+            readerFlags = 0;
+        }
+        int writerFlags = computeFrames ? ClassWriter.COMPUTE_FRAMES : 0;
+        ClassWriter writer = new PipelineClassWriter(reader, writerFlags, loader);
+        tail.setNext(writer);
+        reader.accept(chain, readerFlags);
+        return writer.toByteArray();
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getName() + Arrays.asList(providers);
+    }
+    
+    // Writer is created once it's known what should be computed 
+    private static final class Tail extends ClassVisitor {
+        Tail() {
+            super(Opcodes.ASM9);
+        }
+        
+        void setNext(ClassVisitor next) {
+            cv = next;
+        }
+    }
+    
+    private static final class PipelineClassWriter extends ClassWriter {
+        private final ClassLoader classLoader;
+        
+        PipelineClassWriter(ClassReader classReader, int flags, ClassLoader classLoader) {
+            super(classReader, flags);
+            this.classLoader = classLoader;
+        }
+        
+        @Override
+        protected ClassLoader getClassLoader() {
+            // Resolve common super classes against the loader of the transformed class
+            return null != classLoader ? classLoader : ClassLoader.getSystemClassLoader();
+        }
+    }
+}
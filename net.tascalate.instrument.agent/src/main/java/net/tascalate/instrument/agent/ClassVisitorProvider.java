@@ -0,0 +1,72 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.security.ProtectionDomain;
+
+import net.tascalate.asmx.ClassVisitor;
+
+/**
+ * <p>Contributes ASM class visitor to the {@link ClassVisitorPipeline}, so several 
+ * transformations share a single parse and a single write of the class file.
+ * 
+ * @author vsilaev
+ * @see ClassVisitorPipeline
+ */
+public interface ClassVisitorProvider {
+    
+    public static enum FrameMode {
+        /** Visitor keeps stack map frames valid */
+        KEEP, 
+        /** Visitor needs expanded frames, like {@link net.tascalate.asmx.commons.LocalVariablesSorter} */
+        EXPAND,
+        /** Visitor changes code so that frames must be recomputed */
+        COMPUTE
+    }
+    
+    /**
+     * Creates visitor for the class being transformed
+     * @param next the next visitor in the pipeline the created visitor should delegate to
+     * @param loader the defining class loader of the class
+     * @param className the internal name of the class
+     * @param classBeingRedefined the class being redefined / re-transformed or null 
+     * @param protectionDomain the protection domain of the class
+     * @return the visitor, or <code>null</code> (or <code>next</code>) if the class is not of interest 
+     */
+    ClassVisitor createClassVisitor(ClassVisitor next, 
+                                    ClassLoader loader, 
+                                    String className, 
+                                    Class<?> classBeingRedefined, 
+                                    ProtectionDomain protectionDomain);
+    
+    FrameMode getFrameMode();
+}
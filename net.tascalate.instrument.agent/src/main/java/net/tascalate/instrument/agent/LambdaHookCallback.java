@@ -0,0 +1,77 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.util.function.BiFunction;
+
+/**
+ * Adapts {@link LambdaClassTransformer} to the JDK-only callback type accepted 
+ * by the bootstrap lambda hook. Used on Java 9+ only.
+ */
+final class LambdaHookCallback implements BiFunction<Class<?>, byte[], byte[]> {
+    private final LambdaClassTransformer transformer;
+    
+    LambdaHookCallback(LambdaClassTransformer transformer) {
+        this.transformer = transformer;
+    }
+    
+    @Override
+    public byte[] apply(Class<?> lambdaOwningClass, byte[] lambdaClassBytes) {
+        try {
+            return transformer.transform(lambdaOwningClass, lambdaClassBytes);
+        } catch (Throwable ex) {
+            return lambdaClassBytes;
+        }
+    }
+    
+    @Override
+    public int hashCode() {
+        return transformer.hashCode();
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        // Identify by transformer to support unregistration
+        if (this == other) {
+            return true;
+        } else if (other instanceof LambdaHookCallback) {
+            return transformer.equals(((LambdaHookCallback)other).transformer);
+        } else {
+            return false;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getName() + "[transformer=" + transformer + "]";
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Immutable matcher of class names against a set of prefixes, like <code>com.mycompany.</code>, 
+ * compiled into a character trie. Matching is done in a single pass over the class name 
+ * without allocations, and both binary names (<code>com.mycompany.Service</code>, as returned by 
+ * {@link Class#getName()}) and internal names (<code>com/mycompany/Service</code>, as passed 
+ * to {@link java.lang.instrument.ClassFileTransformer#transform}) are supported: '/' and '.' 
+ * are treated as the same character.
+ * 
+ * @author vsilaev
+ */
+public final class PackagePrefixMatcher {
+    private final char[][] labels;
+    private final int[][] children;
+    private final boolean[] terminals;
+    private final List<String> prefixes;
+    
+    private PackagePrefixMatcher(Collection<String> prefixes) {
+        Node root = new Node();
+        int nodeCount = 1;
+        TreeSet<String> normalized = new TreeSet<String>();
+        for (String prefix : prefixes) {
+            if (null == prefix) {
+                continue;
+            }
+            prefix = prefix.replace('/', '.');
+            normalized.add(prefix);
+            Node node = root;
+            for (int i = 0; i < prefix.length(); i++) {
+                Character c = Character.valueOf(prefix.charAt(i));
+                Node next = node.children.get(c);
+                if (null == next) {
+                    next = new Node();
+                    node.children.put(c, next);
+                    nodeCount++;
+                }
+                node = next;
+            }
+            node.terminal = true;
+        }
+        
+        labels    = new char[nodeCount][];
+        children  = new int[nodeCount][];
+        terminals = new boolean[nodeCount];
+        // Breadth-first flattening, root is the node #0
+        List<Node> queue = new ArrayList<Node>(nodeCount);
+        queue.add(root);
+        for (int idx = 0; idx < queue.size(); idx++) {
+            Node node = queue.get(idx);
+            int size = node.children.size();
+            char[] nodeLabels = new char[size];
+            int[] nodeChildren = new int[size];
+            int i = 0;
+            for (Map.Entry<Character, Node> e : node.children.entrySet()) {
+                nodeLabels[i] = e.getKey().charValue();
+                nodeChildren[i] = queue.size();
+                queue.add(e.getValue());
+                i++;
+            }
+            labels[idx] = nodeLabels;
+            children[idx] = nodeChildren;
+            terminals[idx] = node.terminal;
+        }
+        this.prefixes = Collections.unmodifiableList(new ArrayList<String>(normalized));
+    }
+    
+    public static PackagePrefixMatcher of(String... prefixes) {
+        return of(Arrays.asList(prefixes));
+    }
+    
+    public static PackagePrefixMatcher of(Collection<String> prefixes) {
+        return new PackagePrefixMatcher(prefixes);
+    }
+    
+    /**
+     * Matcher for the packages specified and their sub-packages
+     * @param packageNames names of the packages, like <code>com.mycompany.services</code>
+     * @return the matcher
+     */
+    public static PackagePrefixMatcher ofPackages(Collection<String> packageNames) {
+        List<String> prefixes = new ArrayList<String>(packageNames.size());
+        for (String packageName : packageNames) {
+            prefixes.add(packageName.endsWith(".") || packageName.endsWith("/") ? packageName : packageName + '.');
+        }
+        return of(prefixes);
+    }
+    
+    /**
+     * Check whether the class name starts with any of the prefixes
+     * @param className either binary or internal name of the class, may be null
+     * @return true if class name matches any prefix
+     */
+    public boolean matches(String className) {
+        if (terminals[0]) {
+            // Empty prefix
+            return true;
+        }
+        if (null == className) {
+            return false;
+        }
+        int node = 0;
+        for (int i = 0, length = className.length(); i < length; i++) {
+            char c = className.charAt(i);
+            node = child(node, c == '/' ? '.' : c);
+            if (node < 0) {
+                return false;
+            }
+            if (terminals[node]) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public boolean matches(Class<?> clazz) {
+        return matches(clazz.getName());
+    }
+    
+    public List<String> prefixes() {
+        return prefixes;
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + prefixes;
+    }
+    
+    private int child(int node, char c) {
+        char[] nodeLabels = labels[node];
+        int size = nodeLabels.length;
+        if (size <= 8) {
+            for (int i = 0; i < size; i++) {
+                if (nodeLabels[i] == c) {
+                    return children[node][i];
+                }
+            }
+            return -1;
+        } else {
+            int i = Arrays.binarySearch(nodeLabels, c);
+            return i < 0 ? -1 : children[node][i];
+        }
+    }
+    
+    private static class Node {
+        final Map<Character, Node> children = new TreeMap<Character, Node>();
+        boolean terminal;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+/**
+ * Shards classes to re-transform across a bounded pool of worker threads. Transformers 
+ * are invoked on the thread that calls {@link java.lang.instrument.Instrumentation#retransformClasses(Class...)},
+ * so CPU-intensive transformations run in parallel while the VM operations themselves are 
+ * still serialized by the JVM.
+ * 
+ * @author vsilaev
+ */
+class ParallelRetransformer {
+    private final BatchRetransformer retransformer;
+    private final Logger log;
+    private final int parallelism;
+    
+    ParallelRetransformer(BatchRetransformer retransformer, Logger log, int parallelism) {
+        this.retransformer = retransformer;
+        this.log = log;
+        this.parallelism = Math.max(1, parallelism);
+    }
+    
+    int parallelism() {
+        return parallelism;
+    }
+    
+    RetransformStatistics retransform(List<Class<?>> classes) {
+        int size = classes.size();
+        int workers = Math.min(parallelism, size);
+        if (workers <= 1) {
+            return retransformer.retransform(classes);
+        }
+        
+        long startTime = System.nanoTime();
+        int shardSize = (size + workers - 1) / workers;
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new WorkerThreadFactory());
+        try {
+            List<Future<RetransformStatistics>> futures = new ArrayList<Future<RetransformStatistics>>(workers);
+            for (int start = 0, workerNo = 1; start < size; start += shardSize, workerNo++) {
+                final List<Class<?>> shard = classes.subList(start, Math.min(start + shardSize, size));
+                final int currentWorkerNo = workerNo;
+                futures.add(executor.submit(new Callable<RetransformStatistics>() {
+                    @Override
+                    public RetransformStatistics call() {
+                        RetransformStatistics stats = retransformer.retransform(shard);
+                        if (log.isInfoEnabled()) {
+                            log.info("Re-transformation worker " + currentWorkerNo + " completed: " + stats);
+                        }
+                        return stats;
+                    }
+                }));
+            }
+            
+            RetransformStatistics total = new RetransformStatistics();
+            int workerNo = 0;
+            for (Future<RetransformStatistics> future : futures) {
+                workerNo++;
+                try {
+                    total.add(future.get());
+                } catch (ExecutionException ex) {
+                    // Isolate worker errors -- others proceed
+                    log.error("Re-transformation worker " + workerNo + " failed", ex.getCause());
+                } catch (InterruptedException ex) {
+                    log.warn("Interrupted while waiting for re-transformation worker " + workerNo);
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            // Report wall-clock time rather than the sum of workers' time
+            total.elapsedNanos = System.nanoTime() - startTime;
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "tascalate-instrument-retransform-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
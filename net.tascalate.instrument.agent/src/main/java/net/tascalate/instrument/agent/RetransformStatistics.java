@@ -0,0 +1,67 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent;
+
+/**
+ * Mutable counters collected while re-transforming already loaded classes.
+ * Every {@link java.lang.instrument.Instrumentation#retransformClasses(Class...)} call 
+ * is a separate VM operation (i.e. a separate safepoint), so the number of VM operations 
+ * is reported alongside the number of classes.
+ * 
+ * @author vsilaev
+ */
+class RetransformStatistics {
+    int classes;
+    int failedClasses;
+    int vmOperations;
+    long elapsedNanos;
+    
+    RetransformStatistics add(RetransformStatistics other) {
+        classes       += other.classes;
+        failedClasses += other.failedClasses;
+        vmOperations  += other.vmOperations;
+        elapsedNanos  += other.elapsedNanos;
+        return this;
+    }
+    
+    long elapsedMillis() {
+        return elapsedNanos / 1000000L;
+    }
+    
+    @Override
+    public String toString() {
+        return "classes=" + classes + 
+               ", failed=" + failedClasses + 
+               ", vm-operations=" + vmOperations + 
+               ", time=" + elapsedMillis() + "ms";
+    }
+}
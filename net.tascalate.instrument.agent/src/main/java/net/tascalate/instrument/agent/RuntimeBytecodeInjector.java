@@ -31,17 +31,10 @@
  */
 package net.tascalate.instrument.agent;
 
-import static net.tascalate.asmx.Opcodes.AALOAD;
-import static net.tascalate.asmx.Opcodes.AASTORE;
 import static net.tascalate.asmx.Opcodes.ALOAD;
-import static net.tascalate.asmx.Opcodes.ANEWARRAY;
 import static net.tascalate.asmx.Opcodes.GETFIELD;
-import static net.tascalate.asmx.Opcodes.GETSTATIC;
-import static net.tascalate.asmx.Opcodes.ICONST_0;
-import static net.tascalate.asmx.Opcodes.ICONST_1;
-import static net.tascalate.asmx.Opcodes.ICONST_2;
-import static net.tascalate.asmx.Opcodes.ICONST_3;
 import static net.tascalate.asmx.Opcodes.ILOAD;
+import static net.tascalate.asmx.Opcodes.INVOKESTATIC;
 import static net.tascalate.asmx.Opcodes.INVOKEVIRTUAL;
 import static net.tascalate.asmx.Opcodes.ISTORE;
 
@@ -52,7 +45,14 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.annotation.Documented;
+import java.lang.annotation.Inherited;
 import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.Instrumentation;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
 
 import net.tascalate.asmx.ClassReader;
 import net.tascalate.asmx.ClassVisitor;
@@ -64,16 +64,30 @@ import net.tascalate.asmx.commons.LocalVariablesSorter;
 class RuntimeBytecodeInjector {
     
     private static final String LAMBDA_METAFACTORY_CLASS_NAME = "java.lang.invoke.InnerClassLambdaMetafactory";
+    private static final String LAMBDA_HOOK_CLASS_NAME = "net.tascalate.instrument.agent.hook.LambdaHook";
+    // All classes that should be placed to the helper JAR
+    private static final String[] LAMBDA_HOOK_CLASS_NAMES = {
+        LAMBDA_HOOK_CLASS_NAME, LAMBDA_HOOK_CLASS_NAME + "$Entry"
+    };
     
     static boolean isInjectionApplied() {
-        Class<?> cls;
+        return lambdaMetafactoryClass().getAnnotation(Inherited.class) != null;
+    }
+    
+    /**
+     * Checks whether lambda metafactory was patched by older agents to call 
+     * <code>System.out.print(Object)</code> rather than the dedicated hook
+     */
+    static boolean isLegacyInjectionApplied() {
+        return lambdaMetafactoryClass().getAnnotation(Documented.class) != null;
+    }
+    
+    private static Class<?> lambdaMetafactoryClass() {
         try {
-            cls = ClassLoader.getSystemClassLoader().loadClass(LAMBDA_METAFACTORY_CLASS_NAME);
+            return ClassLoader.getSystemClassLoader().loadClass(LAMBDA_METAFACTORY_CLASS_NAME);
         } catch (ClassNotFoundException ex) {
             throw new RuntimeException(ex);
         }
-        Documented anno = cls.getAnnotation(Documented.class);
-        return anno != null;
     }
 
     static ClassDefinition modifyLambdaMetafactory() throws ClassNotFoundException, IOException {
@@ -100,47 +114,19 @@ class RuntimeBytecodeInjector {
                     Type bytesType = Type.getType(byte[].class);
                     Type classType = Type.getType(Class.class);
                     
-                    Type objectType = Type.getType(Object.class);
-                    Type objectsType = Type.getType(Object[].class);
-                    Type systemType = Type.getType(System.class);
-                    Type printStreamType = Type.getType(PrintStream.class);
-                    
                     int bytesVar = newLocal(bytesType);
-                    int params = newLocal(objectsType);
                     super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
                     visitVarInsn(bytesType.getOpcode(ISTORE), bytesVar);
                     
-                    visitInsn(ICONST_3);
-                    visitTypeInsn(ANEWARRAY, objectType.getInternalName());
-                    visitVarInsn(objectsType.getOpcode(ISTORE), params);
-                    
-                    // params[0] = this
-                    visitVarInsn(objectsType.getOpcode(ILOAD), params);
-                    visitInsn(ICONST_0);
-                    visitVarInsn(ALOAD, 0);
-                    visitInsn(AASTORE);
-                    
-                    // params[1] = super.targetClass
-                    visitVarInsn(objectsType.getOpcode(ILOAD), params);
-                    visitInsn(ICONST_1);
+                    // outBytes = LambdaHook.transform(super.targetClass, inBytes)
                     visitVarInsn(ALOAD, 0);
                     visitFieldInsn(GETFIELD, "java/lang/invoke/AbstractValidatingLambdaMetafactory", "targetClass", classType.getDescriptor());
-                    visitInsn(AASTORE);
-                    
-                    // params[2] = inBytes, after call replaced by outBytes
-                    visitVarInsn(objectsType.getOpcode(ILOAD), params);
-                    visitInsn(ICONST_2);
                     visitVarInsn(bytesType.getOpcode(ILOAD), bytesVar);
-                    visitInsn(AASTORE);
-                    
-                    visitFieldInsn(GETSTATIC, systemType.getInternalName(), "out", printStreamType.getDescriptor());
-                    visitVarInsn(objectsType.getOpcode(ILOAD), params);
-                    visitMethodInsn(INVOKEVIRTUAL, printStreamType.getInternalName(), "print", Type.getMethodDescriptor(Type.VOID_TYPE, objectType), false);
-
-                    // get outBytes, params[2]
-                    visitVarInsn(objectsType.getOpcode(ILOAD), params);
-                    visitInsn(ICONST_2);
-                    visitInsn(AALOAD);
+                    visitMethodInsn(INVOKESTATIC, 
+                                    LAMBDA_HOOK_CLASS_NAME.replace('.', '/'), 
+                                    "transform", 
+                                    Type.getMethodDescriptor(bytesType, classType, bytesType), 
+                                    false);
                 } else {
                     super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
                 }
@@ -159,7 +145,7 @@ class RuntimeBytecodeInjector {
                               String signature,
                               String superName,String[] interfaces) {
                 super.visit(version, access, name, signature, superName, interfaces);
-                Type annoType = Type.getType(Documented.class);
+                Type annoType = Type.getType(Inherited.class);
                 visitAnnotation(annoType.getDescriptor(), true).visitEnd();
             }
             
@@ -178,14 +164,74 @@ class RuntimeBytecodeInjector {
         return new ClassDefinition(original.getDefinitionClass(), classWriter.toByteArray());
     }
     
-    static void installTransformer(final LambdaClassTransformer transformer) {
+    /**
+     * Makes the lambda hook class available to the patched lambda metafactory:
+     * appends the cached helper JAR with the hook to the bootstrap class path (once per JVM)
+     * and lets <code>java.base</code> module read the unnamed module of the bootstrap class loader
+     */
+    static synchronized void installHook(Instrumentation instrumentation) throws Exception {
+        Class<?> hookClass = findBootstrapClass(LAMBDA_HOOK_CLASS_NAME);
+        if (null == hookClass) {
+            instrumentation.appendToBootstrapClassLoaderSearch(BootstrapJar.of("tal-lambda-hook", LAMBDA_HOOK_CLASS_NAMES));
+            hookClass = Class.forName(LAMBDA_HOOK_CLASS_NAME, true, null);
+        }
+        
+        Method getModule = Class.class.getMethod("getModule");
+        Class<?> moduleClass = getModule.getReturnType(); 
+        Object javaBaseModule = getModule.invoke(Object.class);
+        Object hookModule = getModule.invoke(hookClass);
+        Method canRead = moduleClass.getMethod("canRead", moduleClass);
+        if (!((Boolean)canRead.invoke(javaBaseModule, hookModule)).booleanValue()) {
+            Method redefineModule = Instrumentation.class.getMethod(
+                "redefineModule", moduleClass, Set.class, Map.class, Map.class, Set.class, Map.class
+            );
+            redefineModule.invoke(
+                instrumentation, 
+                javaBaseModule, 
+                Collections.singleton(hookModule), 
+                Collections.emptyMap(), 
+                Collections.emptyMap(), 
+                Collections.emptySet(), 
+                Collections.emptyMap()
+            );
+        }
+    }
+    
+    static void installTransformer(LambdaClassTransformer transformer, int order) throws Exception {
+        Class<?> hookClass = Class.forName(LAMBDA_HOOK_CLASS_NAME, true, null);
+        Method register = hookClass.getMethod("register", BiFunction.class, int.class);
+        register.invoke(null, new LambdaHookCallback(transformer), Integer.valueOf(order));
+    }
+    
+    static boolean uninstallTransformer(LambdaClassTransformer transformer) throws Exception {
+        Class<?> hookClass = findBootstrapClass(LAMBDA_HOOK_CLASS_NAME);
+        if (null == hookClass) {
+            return false;
+        }
+        Method unregister = hookClass.getMethod("unregister", BiFunction.class);
+        return ((Boolean)unregister.invoke(null, new LambdaHookCallback(transformer))).booleanValue();
+    }
+    
+    static void installLegacyTransformer(LambdaClassTransformer transformer) {
         System.setOut(new HookedPrintStream(transformer, System.out, true));        
     }
     
+    private static Class<?> findBootstrapClass(String className) {
+        try {
+            return Class.forName(className, false, null);
+        } catch (ClassNotFoundException ex) {
+            return null;
+        }
+    }
+    
     private static ClassDefinition loadClassDefinition(Class<?> clazz) throws IOException {
+        InputStream in = Object.class.getResourceAsStream('/' + clazz.getName().replace('.', '/') + ".class");
+        return new ClassDefinition(clazz, readFully(in));
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         byte[] buff = new byte[1024];
-        InputStream in = Object.class.getResourceAsStream('/' + clazz.getName().replace('.', '/') + ".class");
         try {
             int c = 0;
             while ((c= in.read(buff)) > 0) {
@@ -197,8 +243,7 @@ class RuntimeBytecodeInjector {
             }
         }
         out.close();
-        byte[] bytes = out.toByteArray();
-        return new ClassDefinition(clazz, bytes);
+        return out.toByteArray();
     }
     
     private static ClassDefinition loadClassDefinition(String className) throws ClassNotFoundException, IOException {
@@ -0,0 +1,124 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.agent.hook;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * <p>Callback invoked by the patched <code>java.lang.invoke.InnerClassLambdaMetafactory</code> 
+ * for every lambda class spun.
+ * <p>This class is loaded by the bootstrap class loader from a helper JAR appended 
+ * to the bootstrap class path, so it may reference JDK classes only. It is shared 
+ * by all agents in the process: agents access it reflectively and register callbacks 
+ * typed with JDK interfaces. Callbacks are invoked in a single pass in the ascending 
+ * order specified at registration (and in the order of registration for equal ones),
+ * each one receives the output of the previous one.
+ */
+public final class LambdaHook {
+    
+    private static final AtomicReference<Entry[]> ENTRIES = new AtomicReference<Entry[]>(new Entry[0]);
+    
+    private LambdaHook() {}
+    
+    public static byte[] transform(Class<?> lambdaOwningClass, byte[] lambdaClassBytes) {
+        byte[] result = lambdaClassBytes;
+        for (Entry entry : ENTRIES.get()) {
+            try {
+                byte[] transformed = entry.callback.apply(lambdaOwningClass, result);
+                if (null != transformed) {
+                    result = transformed;
+                }
+            } catch (Throwable ex) {
+                // Lambda creation should never fail due to instrumentation
+            }
+        }
+        return result;
+    }
+    
+    public static void register(BiFunction<Class<?>, byte[], byte[]> callback) {
+        register(callback, 0);
+    }
+    
+    public static void register(BiFunction<Class<?>, byte[], byte[]> callback, int order) {
+        if (null == callback) {
+            throw new IllegalArgumentException("\"callback\" may not be null");
+        }
+        Entry entry = new Entry(callback, order);
+        while (true) {
+            Entry[] current = ENTRIES.get();
+            int position = current.length;
+            while (position > 0 && current[position - 1].order > order) {
+                position--;
+            }
+            Entry[] updated = new Entry[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, position);
+            updated[position] = entry;
+            System.arraycopy(current, position, updated, position + 1, current.length - position);
+            if (ENTRIES.compareAndSet(current, updated)) {
+                return;
+            }
+        }
+    }
+    
+    public static boolean unregister(BiFunction<Class<?>, byte[], byte[]> callback) {
+        while (true) {
+            Entry[] current = ENTRIES.get();
+            int position = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i].callback.equals(callback)) {
+                    position = i;
+                    break;
+                }
+            }
+            if (position < 0) {
+                return false;
+            }
+            Entry[] updated = new Entry[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, position);
+            System.arraycopy(current, position + 1, updated, position, current.length - position - 1);
+            if (ENTRIES.compareAndSet(current, updated)) {
+                return true;
+            }
+        }
+    }
+    
+    private static final class Entry {
+        final BiFunction<Class<?>, byte[], byte[]> callback;
+        final int order;
+        
+        Entry(BiFunction<Class<?>, byte[], byte[]> callback, int order) {
+            this.callback = callback;
+            this.order = order;
+        }
+    }
+}
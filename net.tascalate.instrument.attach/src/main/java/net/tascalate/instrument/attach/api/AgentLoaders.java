@@ -32,8 +32,14 @@
 package net.tascalate.instrument.attach.api;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import net.tascalate.instrument.attach.core.ExternalAgentLoader;
+import net.tascalate.instrument.attach.core.ForeignNativeAgentLoader;
+import net.tascalate.instrument.attach.core.HotSpotAgentLoader;
 import net.tascalate.instrument.attach.core.LocalAgentLoader;
 import net.tascalate.instrument.attach.core.SafeAgentLoader;
 import net.tascalate.instrument.attach.core.SafeAgentLoaderChain;
@@ -57,6 +63,14 @@ public final class AgentLoaders {
         return new SafeNativeAgentLoader();
     }
 
+    public static AgentLoader getForeign() {
+        return new ForeignNativeAgentLoader();
+    }
+
+    public static AgentLoader getHotSpot() {
+        return new HotSpotAgentLoader();
+    }
+
     public static AgentLoader getLocal() {
         return new LocalAgentLoader(false);
     }
@@ -65,11 +79,45 @@ public final class AgentLoaders {
         return new ExternalAgentLoader();
     }
 
+    public static AgentLoader getExternal(long helperIdleTimeout, TimeUnit unit) {
+        return new ExternalAgentLoader(null, null, helperIdleTimeout, unit);
+    }
+
     public static void attach(String jarFile, String param) throws AgentLoaderException {
         getDefault().attach(jarFile, param);
     }
 
-    static class WithArgsCheck implements AgentLoader {
+    public static List<AgentOutcome> attachAll(List<AgentSpec> agents) throws AgentLoaderException {
+        return attachAll(getDefault(), agents);
+    }
+
+    /**
+     * Loads several agents with the loader specified. Loaders that implement 
+     * {@link BatchAgentLoader} load them within a single attach session, 
+     * other loaders load agents one by one.
+     * 
+     * @param loader loader to use
+     * @param agents agents to load, in load order
+     * @return outcomes for every agent, in the same order as agents
+     * @throws AgentLoaderException if attaching to the VM itself fails
+     */
+    public static List<AgentOutcome> attachAll(AgentLoader loader, List<AgentSpec> agents) throws AgentLoaderException {
+        if (loader instanceof BatchAgentLoader) {
+            return ((BatchAgentLoader)loader).attachAll(agents);
+        }
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        for (AgentSpec agent : agents) {
+            try {
+                loader.attach(agent.getJarPath(), agent.getParams());
+                result.add(AgentOutcome.loaded(agent));
+            } catch (RuntimeException ex) {
+                result.add(AgentOutcome.failed(agent, ex));
+            }
+        }
+        return result;
+    }
+
+    static class WithArgsCheck implements BatchAgentLoader {
         private final AgentLoader loader;
 
         WithArgsCheck(AgentLoader loader) {
@@ -88,6 +136,31 @@ public final class AgentLoaders {
             loader.attach(agentJarPath, agentParams);
         }
 
+        @Override
+        public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+            List<AgentSpec> accessibleAgents = new ArrayList<AgentSpec>(agents.size());
+            List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+            for (AgentSpec agent : agents) {
+                try {
+                    checkFile(agent.getJarPath());
+                    accessibleAgents.add(agent);
+                    // Placeholder, replaced with actual outcome below
+                    result.add(null);
+                } catch (IllegalArgumentException ex) {
+                    result.add(AgentOutcome.failed(agent, ex));
+                }
+            }
+            if (!accessibleAgents.isEmpty()) {
+                Iterator<AgentOutcome> outcomes = AgentLoaders.attachAll(loader, accessibleAgents).iterator();
+                for (int i = 0; i < result.size(); i++) {
+                    if (null == result.get(i)) {
+                        result.set(i, outcomes.next());
+                    }
+                }
+            }
+            return result;
+        }
+
         @Override
         public String toString() {
             return loader.toString() + "**checking-file**";
@@ -31,12 +31,30 @@
  */
 package net.tascalate.instrument.attach.core;
 
-import net.tascalate.instrument.attach.api.AgentLoader;
+import java.util.ArrayList;
+import java.util.List;
 
-abstract class AbstractAgentLoader implements AgentLoader {
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+import net.tascalate.instrument.attach.api.BatchAgentLoader;
+
+abstract class AbstractAgentLoader implements BatchAgentLoader {
 
     public final void attach(String agentJarPath) {
         attach(agentJarPath, null);
     }
 
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        for (AgentSpec agent : agents) {
+            try {
+                attach(agent.getJarPath(), agent.getParams());
+                result.add(AgentOutcome.loaded(agent));
+            } catch (RuntimeException ex) {
+                result.add(AgentOutcome.failed(agent, ex));
+            }
+        }
+        return result;
+    }
+
 }
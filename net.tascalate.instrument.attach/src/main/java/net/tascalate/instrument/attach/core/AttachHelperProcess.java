@@ -0,0 +1,410 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+
+/**
+ * Long-lived external attach process shared by subsequent attaches.
+ * <p>
+ * The helper is started on first use by the owning {@link ExternalAgentLoader}
+ * and receives attach requests over its standard input; replies are sent back over
+ * its standard output. Every request is a batch of agents loaded within a single
+ * attach session. The helper greets with a handshake once started, requests and replies
+ * start with own magic numbers, so anything else written to the standard output
+ * of the helper (by the JVM or by agents injected via environment variables, which
+ * are cleared anyway) is detected as a protocol failure rather than misread. 
+ * Strings are sent as UTF-8 bytes prefixed with their length, up to 
+ * {@link #MAX_STRING_LENGTH} bytes. 
+ * <p>
+ * A helper that doesn't reply within the reply timeout (2 minutes by default, 
+ * see the system property "net.tascalate.instrument.attach.helper.replyTimeout") 
+ * is killed. When no request arrives within the idle timeout the pipe is
+ * closed and the helper exits (or is killed if it doesn't exit shortly); it is started 
+ * again on the next attach. The helper exits as well when the JVM that started it 
+ * terminates, since its input reaches EOF. A helper with zero idle timeout serves 
+ * until {@link #stop()} is called.
+ * <p>
+ * The same class implements the helper side, see {@link #serve(File)}.
+ */
+final class AttachHelperProcess implements Runnable {
+    
+    private final static Logger LOGGER = Logger.getLogger(AttachHelperProcess.class.getName());
+    
+    static final String SERVE_ARG = "--serve";
+    
+    static final int MAX_STRING_LENGTH = 1 << 20;
+    
+    private static final int HANDSHAKE_MAGIC = 0x54414C48; // "TALH"
+    private static final int REQUEST_MAGIC   = 0x54414C51; // "TALQ"
+    private static final int REPLY_MAGIC     = 0x54414C52; // "TALR"
+    
+    private static final long REPLY_TIMEOUT_MILLIS = 
+        Long.getLong("net.tascalate.instrument.attach.helper.replyTimeout", 120000L).longValue();
+    private static final long STOP_TIMEOUT_MILLIS = 5000L;
+    
+    private final ExternalAgentLoader launcher;
+    private final long idleTimeoutMillis;
+    
+    // All guarded by this
+    private Process process;
+    private DataOutputStream requests;
+    private DataInputStream replies;
+    private long lastUsedAt;
+    
+    AttachHelperProcess(ExternalAgentLoader launcher, long idleTimeoutMillis) {
+        this.launcher = launcher;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+    
+    void attach(String agentJarPath, String agentParams, long pid) throws IOException {
+        AgentOutcome outcome = attachAll(Collections.singletonList(AgentSpec.of(agentJarPath, agentParams)), pid).get(0);
+        if (!outcome.isLoaded()) {
+            throw new IllegalStateException(
+                "Could not self-attach to current VM using external process: " + outcome.getError().getMessage()
+            );
+        }
+    }
+    
+    synchronized List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid) throws IOException {
+        // Encode the request upfront, so only pipe failures are treated as a dead helper
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream requestData = new DataOutputStream(request);
+        requestData.writeInt(REQUEST_MAGIC);
+        requestData.writeLong(pid);
+        requestData.writeInt(agents.size());
+        for (AgentSpec agent : agents) {
+            writeString(requestData, agent.getJarPath());
+            requestData.writeBoolean(null != agent.getParams());
+            writeString(requestData, null == agent.getParams() ? "" : agent.getParams());
+        }
+        requestData.flush();
+        
+        boolean reused = isRunning();
+        if (!reused) {
+            start();
+        }
+        
+        try {
+            request.writeTo(requests);
+            requests.flush();
+        } catch (IOException ex) {
+            stop();
+            if (!reused) {
+                throw ex;
+            }
+            // Helper was gone before it could read the request, so it's safe to repeat it
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "External attach helper is not responding, restarting", ex);
+            }
+            return attachAll(agents, pid);
+        }
+        
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        TimerTask timeout = destroyAfter(process, REPLY_TIMEOUT_MILLIS);
+        try {
+            expectMagic(replies, REPLY_MAGIC, "reply");
+            int count = replies.readInt();
+            if (count != agents.size()) {
+                throw new IOException("Unexpected number of outcomes in reply: " + count + ", expected " + agents.size());
+            }
+            for (AgentSpec agent : agents) {
+                boolean success = replies.readBoolean();
+                String message = readString(replies);
+                result.add(success ? AgentOutcome.loaded(agent) : AgentOutcome.failed(agent, new AgentLoaderException(message)));
+            }
+        } catch (IOException ex) {
+            // Unknown whether agents were loaded, don't retry
+            stop();
+            throw timeout.cancel() ? ex : timedOut(ex);
+        } finally {
+            timeout.cancel();
+            lastUsedAt = System.currentTimeMillis();
+            notifyAll();
+        }
+        return result;
+    }
+    
+    /**
+     * Idle watchdog, runs in a daemon thread as long as the helper is alive
+     */
+    public void run() {
+        synchronized (this) {
+            Process watchedProcess = process;
+            while (process == watchedProcess && null != watchedProcess) {
+                long waitMillis = lastUsedAt + idleTimeoutMillis - System.currentTimeMillis();
+                if (waitMillis <= 0) {
+                    if (LOGGER.isLoggable(Level.FINER)) {
+                        LOGGER.finer("Stopping idle external attach helper");
+                    }
+                    stop();
+                    return;
+                }
+                try {
+                    wait(waitMillis);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+    
+    private boolean isRunning() {
+        if (null == process) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            stop();
+            return false;
+        } catch (IllegalThreadStateException ex) {
+            return true;
+        }
+    }
+    
+    private void start() throws IOException {
+        process = launcher.startAttachHelper();
+        requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+        replies  = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        lastUsedAt = System.currentTimeMillis();
+        
+        TimerTask timeout = destroyAfter(process, REPLY_TIMEOUT_MILLIS);
+        try {
+            expectMagic(replies, HANDSHAKE_MAGIC, "handshake");
+        } catch (IOException ex) {
+            stop();
+            throw timeout.cancel() ? ex : timedOut(ex);
+        } finally {
+            timeout.cancel();
+        }
+        
+        if (idleTimeoutMillis > 0) {
+            Thread watchdog = new Thread(this, "tascalate-attach-helper-watchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Started external attach helper, idle timeout is " + idleTimeoutMillis + "ms");
+        }
+    }
+    
+    synchronized void stop() {
+        if (null == process) {
+            return;
+        }
+        // Closing input is a shutdown request for the helper, 
+        // kill it if it doesn't follow shortly (hangs)
+        closeQuietly(requests);
+        closeQuietly(replies);
+        destroyAfter(process, STOP_TIMEOUT_MILLIS);
+        process = null;
+        requests = null;
+        replies = null;
+        notifyAll();
+    }
+    
+    static void serve(File alternativeToolsJar) throws IOException {
+        // Standard output is reserved for replies
+        PrintStream output = System.out;
+        System.setOut(System.err);
+        
+        DataInputStream requests = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream replies = new DataOutputStream(new BufferedOutputStream(output));
+        LocalAgentLoader loader = new LocalAgentLoader(alternativeToolsJar);
+        replies.writeInt(HANDSHAKE_MAGIC);
+        replies.flush();
+        while (true) {
+            try {
+                expectMagic(requests, REQUEST_MAGIC, "request");
+            } catch (EOFException ex) {
+                // Stopped by parent or parent is terminated
+                return;
+            }
+            long pid = requests.readLong();
+            int count = requests.readInt();
+            if (count < 0) {
+                throw new IOException("Invalid number of agents: " + count);
+            }
+            List<AgentSpec> agents = new ArrayList<AgentSpec>(count);
+            for (int i = 0; i < count; i++) {
+                String agentJarPath = new File(readString(requests)).getAbsolutePath();
+                boolean hasParams = requests.readBoolean();
+                String agentParams = readString(requests);
+                agents.add(AgentSpec.of(agentJarPath, hasParams ? agentParams : null));
+            }
+            
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Starting agents " + agents + " @ " + pid + "...");
+            }
+            List<AgentOutcome> outcomes;
+            try {
+                outcomes = loader.attachAll(agents, pid);
+            } catch (Throwable ex) {
+                outcomes = new ArrayList<AgentOutcome>(count);
+                for (AgentSpec agent : agents) {
+                    outcomes.add(AgentOutcome.failed(agent, ex));
+                }
+            }
+            replies.writeInt(REPLY_MAGIC);
+            replies.writeInt(outcomes.size());
+            for (AgentOutcome outcome : outcomes) {
+                if (outcome.isLoaded()) {
+                    replies.writeBoolean(true);
+                    writeString(replies, "");
+                } else {
+                    if (LOGGER.isLoggable(Level.WARNING)) {
+                        LOGGER.log(Level.WARNING, "Unable to start agent " + outcome.getAgent() + " @ " + pid, outcome.getError());
+                    }
+                    replies.writeBoolean(false);
+                    writeString(replies, describe(outcome.getError()));
+                }
+            }
+            replies.flush();
+            if (LOGGER.isLoggable(Level.INFO)) {
+                LOGGER.info("Completed agents start: " + outcomes + " @ " + pid);
+            }
+        }
+    }
+    
+    private static String describe(Throwable error) {
+        Throwable cause = error.getCause();
+        String message = null == error.getMessage() ? error.toString() : error.getMessage();
+        String result = null == cause || cause == error ? message : message + " (" + cause + ")";
+        // Any char takes at most 3 bytes in UTF-8 (surrogate pairs take 4 per 2 chars)
+        int maxLength = MAX_STRING_LENGTH / 3;
+        return result.length() > maxLength ? result.substring(0, maxLength) : result;
+    }
+    
+    private static TimerTask destroyAfter(Process process, long timeoutMillis) {
+        TimerTask task = new DestroyTask(process);
+        DestroyTask.TIMER.schedule(task, timeoutMillis);
+        return task;
+    }
+    
+    private static IOException timedOut(IOException cause) {
+        IOException result = new IOException(
+            "External attach helper didn't reply within " + REPLY_TIMEOUT_MILLIS + "ms and was killed"
+        );
+        result.initCause(cause);
+        return result;
+    }
+    
+    private static void expectMagic(DataInputStream in, int expected, String kind) throws IOException {
+        int magic = in.readInt();
+        if (magic != expected) {
+            throw new IOException(
+                "Unexpected " + kind + " from external attach helper protocol peer: 0x" + Integer.toHexString(magic)
+            );
+        }
+    }
+    
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        if (bytes.length > MAX_STRING_LENGTH) {
+            throw new IOException("String is too long: " + bytes.length + " bytes, at most " + MAX_STRING_LENGTH + " allowed");
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException exIgnore) {
+            
+        }
+    }
+    
+    private static void closeQuietly(OutputStream out) {
+        try {
+            out.close();
+        } catch (IOException exIgnore) {
+            
+        }
+    }
+    
+    static final class DestroyTask extends TimerTask {
+        // Created on first use only, a daemon thread shared by all helpers
+        static final Timer TIMER = new Timer("tascalate-attach-helper-timeout", true);
+        
+        private final Process process;
+        
+        DestroyTask(Process process) {
+            this.process = process;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                process.exitValue();
+            } catch (IllegalThreadStateException ex) {
+                if (LOGGER.isLoggable(Level.WARNING)) {
+                    LOGGER.warning("External attach helper is not responding, killing it");
+                }
+                process.destroy();
+            }
+        }
+    }
+}
@@ -63,6 +63,10 @@ final class CurrentProcess {
     static ProcessBuilder redirectOutputOf(ProcessBuilder processBuilder) {
         return PROCESS_OUTPUT_REDIRECTOR_INSTANCE.redirectOutput(processBuilder);
     }
+    
+    static Process redirectErrorAndStart(ProcessBuilder processBuilder) throws IOException {
+        return PROCESS_OUTPUT_REDIRECTOR_INSTANCE.redirectErrorAndStart(processBuilder);
+    }
 
     private static final boolean IS_WINDOWS_OS = 
         System.getProperty("os.name").toLowerCase(Locale.US).startsWith("windows");
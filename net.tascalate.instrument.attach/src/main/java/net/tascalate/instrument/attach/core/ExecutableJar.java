@@ -0,0 +1,342 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executable helper JAR used to run attach code in a separate process.
+ * <p>
+ * The JAR is content-addressed: its file name is derived from a hash of the
+ * main class name and the bytes of all embedded classes, so it is built once
+ * per library version (and per Java version for multi-release classes) and then
+ * reused by every attach and every JVM sharing the same cache directory.
+ * A new JAR is written to a temporary file first and atomically renamed, so
+ * concurrent processes never observe a partially written file. An existing JAR
+ * is compared with the expected content once per JVM; later launches only check 
+ * that its size and modification time are intact, since the cache directory 
+ * is accessible to the owner only.
+ * <p>
+ * The cache directory is used only when it is owned by the current user and is
+ * not writable by group or others (verified via NIO file attributes, so Java 7+ 
+ * is required); a missing directory is created accessible to the owner only.
+ * Otherwise -- and when the cache directory is not usable for any other reason -- 
+ * a private temporary JAR is created instead and removed by {@link #release()}.
+ */
+final class ExecutableJar {
+    
+    private final static Logger LOGGER = Logger.getLogger(ExecutableJar.class.getName());
+    
+    static final String CACHE_DIRECTORY_PROPERTY = "net.tascalate.instrument.attach.cache.dir";
+    
+    private final File file;
+    private final boolean isTemporary;
+    
+    private ExecutableJar(File file, boolean isTemporary) {
+        this.file = file;
+        this.isTemporary = isTemporary;
+    }
+    
+    File file() {
+        return file;
+    }
+    
+    void release() {
+        if (isTemporary) {
+            file.delete();
+        }
+    }
+    
+    static ExecutableJar of(File cacheDirectory, Class<?> mainClass, Collection<Class<?>> classes) throws IOException {
+        Set<Class<?>> allClasses = new HashSet<Class<?>>(classes);
+        allClasses.add(mainClass);
+        File directory = null == cacheDirectory ? defaultCacheDirectory() : cacheDirectory;
+        
+        List<Object> key = Arrays.<Object>asList(directory.getAbsoluteFile(), mainClass, allClasses);
+        synchronized (VERIFIED_JARS) {
+            VerifiedJar verifiedJar = VERIFIED_JARS.get(key);
+            if (null != verifiedJar && verifiedJar.isIntact()) {
+                return new ExecutableJar(verifiedJar.file, false);
+            }
+        }
+        
+        SortedMap<String, byte[]> content = new TreeMap<String, byte[]>();
+        for (Class<?> clazz : allClasses) {
+            String resourceName = clazz.getName().replace('.', '/') + ".class";
+            content.put(resourceName, readResource(resourceName));
+        }
+
+        if (!directory.exists()) {
+            createPrivateDirectory(directory);
+        }
+        if (directory.isDirectory() && FileOwnership.isPrivate(directory, false)) {
+            File cachedJar = new File(directory, "tal-ext-" + digestOf(mainClass.getName(), content) + ".jar");
+            try {
+                if (ensureCached(cachedJar, mainClass.getName(), content)) {
+                    synchronized (VERIFIED_JARS) {
+                        VERIFIED_JARS.put(key, new VerifiedJar(cachedJar));
+                    }
+                    return new ExecutableJar(cachedJar, false);
+                }
+            } catch (IOException ex) {
+                if (LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.log(Level.FINE, "Unable to use cached executable JAR " + cachedJar, ex);
+                }
+            }
+        } else {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Cache directory for executable JAR is not usable or not private: " + directory);
+            }
+        }
+        
+        File temporaryJar = File.createTempFile("tal-ext", ".jar");
+        temporaryJar.deleteOnExit();
+        writeJar(temporaryJar, mainClass.getName(), content);
+        return new ExecutableJar(temporaryJar, true);
+    }
+    
+    private static boolean ensureCached(File cachedJar, String mainClassName, Map<String, byte[]> content) throws IOException {
+        if (cachedJar.isFile() && hasContent(cachedJar, mainClassName, content)) {
+            return true;
+        }
+        
+        File directory = cachedJar.getParentFile();
+        File stagingJar = File.createTempFile("tal-ext", ".tmp", directory);
+        try {
+            writeJar(stagingJar, mainClassName, content);
+            if (!stagingJar.renameTo(cachedJar)) {
+                // Either created concurrently by another process, or 
+                // the target may not be replaced on this platform (Windows)
+                if (!(cachedJar.isFile() && hasContent(cachedJar, mainClassName, content))) {
+                    if (!(cachedJar.delete() && stagingJar.renameTo(cachedJar))) {
+                        return false;
+                    }
+                }
+            }
+        } finally {
+            stagingJar.delete();
+        }
+        
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Cached executable JAR: " + cachedJar);
+        }
+        return true;
+    }
+    
+    private static boolean hasContent(File jar, String mainClassName, Map<String, byte[]> content) {
+        try {
+            JarFile jarFile = new JarFile(jar, false);
+            try {
+                Manifest manifest = jarFile.getManifest();
+                if (null == manifest || 
+                    !mainClassName.equals(manifest.getMainAttributes().getValue(Attributes.Name.MAIN_CLASS))) {
+                    return false;
+                }
+                int count = 0;
+                for (Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements(); ) {
+                    JarEntry entry = entries.nextElement();
+                    if (JarFile.MANIFEST_NAME.equals(entry.getName())) {
+                        continue;
+                    }
+                    byte[] expected = content.get(entry.getName());
+                    if (null == expected) {
+                        return false;
+                    }
+                    InputStream in = jarFile.getInputStream(entry);
+                    try {
+                        if (!Arrays.equals(expected, readFully(in))) {
+                            return false;
+                        }
+                    } finally {
+                        closeQuietly(in);
+                    }
+                    count++;
+                }
+                return count == content.size();
+            } finally {
+                jarFile.close();
+            }
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+    
+    private static void writeJar(File jar, String mainClassName, Map<String, byte[]> content) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClassName);
+        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jar), manifest);
+        try {
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                jarOutputStream.putNextEntry(new JarEntry(entry.getKey()));
+                jarOutputStream.write(entry.getValue());
+                jarOutputStream.closeEntry();
+            }
+        } finally {
+            jarOutputStream.close();
+        }
+    }
+    
+    private static String digestOf(String mainClassName, SortedMap<String, byte[]> content) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex.getMessage());
+        }
+        digest.update(utf8(mainClassName));
+        for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+            byte[] value = entry.getValue();
+            digest.update((byte)0);
+            digest.update(utf8(entry.getKey()));
+            digest.update((byte)0);
+            digest.update(new byte[] {
+                (byte)(value.length >>> 24), (byte)(value.length >>> 16), (byte)(value.length >>> 8), (byte)value.length
+            });
+            digest.update(value);
+        }
+        byte[] hash = digest.digest();
+        // 128 bits are more than enough to tell library versions apart
+        StringBuilder result = new StringBuilder(32);
+        for (int i = 0; i < 16; i++) {
+            result.append(HEX_DIGITS[(hash[i] >>> 4) & 0x0F]).append(HEX_DIGITS[hash[i] & 0x0F]);
+        }
+        return result.toString();
+    }
+    
+    private static File defaultCacheDirectory() {
+        String directory = System.getProperty(CACHE_DIRECTORY_PROPERTY);
+        if (null != directory && directory.length() > 0) {
+            return new File(directory);
+        }
+        String userName = System.getProperty("user.name", "").replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(System.getProperty("java.io.tmpdir"), "tascalate-instrument-" + userName);
+    }
+    
+    private static void createPrivateDirectory(File directory) {
+        if (directory.mkdirs()) {
+            // Owner-only access; permissions are verified anyway before use
+            directory.setReadable(false, false);
+            directory.setReadable(true, true);
+            directory.setWritable(false, false);
+            directory.setWritable(true, true);
+            directory.setExecutable(false, false);
+            directory.setExecutable(true, true);
+        }
+    }
+    
+    private static byte[] readResource(String resourceName) throws IOException {
+        InputStream in = ExecutableJar.class.getResourceAsStream('/' + resourceName);
+        if (null == in) {
+            throw new IOException("Class resource not found: " + resourceName);
+        }
+        try {
+            return readFully(in);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+    
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        byte[] buffer = new byte[8192];
+        int size;
+        while ((size = in.read(buffer)) > 0) {
+            out.write(buffer, 0, size);
+        }
+        return out.toByteArray();
+    }
+    
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException exIgnore) {
+            
+        }
+    }
+    
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    /**
+     * Cached JAR whose content was verified by this JVM
+     */
+    private static final class VerifiedJar {
+        final File file;
+        private final long length;
+        private final long lastModified;
+        
+        VerifiedJar(File file) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+        }
+        
+        boolean isIntact() {
+            return file.isFile() && file.length() == length && file.lastModified() == lastModified;
+        }
+    }
+    
+    // Keyed by cache directory, main class and embedded classes
+    private static final Map<List<Object>, VerifiedJar> VERIFIED_JARS = new HashMap<List<Object>, VerifiedJar>();
+}
@@ -32,36 +32,65 @@
 package net.tascalate.instrument.attach.core;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
-import java.util.jar.JarOutputStream;
-import java.util.jar.Manifest;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.tascalate.instrument.attach.api.AgentLoader;
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+import net.tascalate.instrument.attach.api.BatchAgentLoader;
 
 public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
 
     private final static Logger LOGGER = Logger.getLogger(ExternalAgentLoader.class.getName());
     private final File alternativeToolsJar;
+    private final File cacheDirectory;
+    private final long helperIdleTimeoutMillis;
 
     public ExternalAgentLoader() {
         this(null);
     }
 
     public ExternalAgentLoader(File alternativeToolsJar) {
+        this(alternativeToolsJar, null);
+    }
+
+    /**
+     * @param alternativeToolsJar location of tools.jar for Java 8 and below, may be null
+     * @param cacheDirectory directory where the executable helper JAR is cached between
+     * attaches and JVM restarts; when null, the value of the system property
+     * "net.tascalate.instrument.attach.cache.dir" is used, falling back to a per-user
+     * directory inside "java.io.tmpdir"
+     */
+    public ExternalAgentLoader(File alternativeToolsJar, File cacheDirectory) {
+        this(alternativeToolsJar, cacheDirectory, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a loader that keeps the external attach process alive between attaches.
+     * The helper process is started on first attach and serves all subsequent attaches
+     * of loaders with the same configuration; it exits once it stays idle longer than
+     * the timeout specified and is restarted on demand.
+     * 
+     * @param alternativeToolsJar location of tools.jar for Java 8 and below, may be null
+     * @param cacheDirectory directory where the executable helper JAR is cached, may be null
+     * @param helperIdleTimeout idle timeout of the helper process; zero or negative value
+     * means that a new process is forked for every attach
+     * @param unit time unit of the helperIdleTimeout
+     */
+    public ExternalAgentLoader(File alternativeToolsJar, File cacheDirectory, long helperIdleTimeout, TimeUnit unit) {
         this.alternativeToolsJar = alternativeToolsJar;
+        this.cacheDirectory = cacheDirectory;
+        this.helperIdleTimeoutMillis = unit.toMillis(helperIdleTimeout);
     }
 
     @Override
@@ -73,11 +102,22 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
     public void attach(String agentJarPath, String agentParams) {
         attach(agentJarPath, agentParams, CurrentProcess.pid());
     }
+
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        return attachAll(agents, CurrentProcess.pid());
+    }
     
     public static void main(String[] argv) throws IOException {
+        if (argv != null && argv.length > 0 && AttachHelperProcess.SERVE_ARG.equals(argv[0])) {
+            AttachHelperProcess.serve(argv.length > 1 ? new File(argv[1]) : null);
+            return;
+        }
+        
         if (argv == null || argv.length < 2) {
             System.out.println("Invalid arguments, ussage:");
             System.out.println("java " + LocalAgentLoader.class.getName() + " <agent.jar> <process-id>");
+            System.out.println("java " + LocalAgentLoader.class.getName() + " " + AttachHelperProcess.SERVE_ARG);
             System.exit(-1);
         }
 
@@ -102,42 +142,24 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
 
     void attach(String agentJarPath, String agentParams, long pid) {
         try {
-            Class<?>[] classes = {
-                AgentLoader.class, 
-                AgentLoaderException.class, 
-                AbstractAgentLoader.class,
-                SafeAgentLoader.class, 
-                LocalAgentLoader.class, 
-                CurrentProcess.class,
-                VMAttachAPI.class,
-                VMAttachImpl.class
-            };
+            if (helperIdleTimeoutMillis > 0) {
+                attachHelper().attach(agentJarPath, agentParams, pid);
+                if (LOGGER.isLoggable(Level.INFO)) {
+                    LOGGER.info("External attach helper completed successfully");
+                }
+                return;
+            }
             
-            File runnableJar = createJarFile(new HashSet<Class<?>>(Arrays.asList(classes)), ExternalAgentLoader.class);
+            ExecutableJar executableJar = ExecutableJar.of(cacheDirectory, ExternalAgentLoader.class, Arrays.asList(CLASSES));
+            File runnableJar = executableJar.file();
 
             if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Using temporary executable JAR: " + runnableJar.getCanonicalPath());
+                LOGGER.finer("Using executable JAR: " + runnableJar.getCanonicalPath());
             }
             try {
-                File currentDirectory = new File(".").getCanonicalFile();
-                String javaCommand = 
-                    System.getProperty("java.home") + File.separatorChar + "bin" + File.separatorChar +
-                    (System.getProperty("os.name", "").toLowerCase(Locale.US).contains("windows") ? "java.exe" : "java");
-
-                String classPath = System.getProperty("java.class.path");
-                if (null == classPath || classPath.length() == 0) {
-                    classPath = "./";
-                }
-
-                List<String> fullCommand = new ArrayList<String>(Arrays.asList(
-                    escape(javaCommand), 
-                    "-cp", 
-                    escape(classPath), 
-                    "-jar",
-                    escape(runnableJar.getCanonicalPath()), 
-                    escape(agentJarPath), 
-                    String.valueOf(pid)
-                ));
+                List<String> fullCommand = javaCommand(runnableJar);
+                fullCommand.add(escape(agentJarPath));
+                fullCommand.add(String.valueOf(pid));
                 
                 if (null != agentParams && agentParams.length() > 0) {
                     fullCommand.add(escape(agentParams));
@@ -153,7 +175,7 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
                     LOGGER.finer("Using Java command: " + fullCommand);
                 }
 
-                ProcessBuilder processBuilder = new ProcessBuilder().directory(currentDirectory).command(fullCommand);
+                ProcessBuilder processBuilder = new ProcessBuilder().directory(new File(".").getCanonicalFile()).command(fullCommand);
 
                 Process process = CurrentProcess.redirectOutputOf(processBuilder)
                                                 .redirectErrorStream(true)
@@ -169,7 +191,7 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
                     }
                 }
             } finally {
-                runnableJar.delete();
+                executableJar.release();
             }
         } catch (InterruptedException ex) {
             throw new IllegalStateException("Could not self-attach to current VM using external process", ex);
@@ -177,47 +199,107 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
             throw new IllegalStateException("Could not self-attach to current VM using external process", ex);
         }
     }
-
-    @Override
-    public String toString() {
-        return getClass().getName() + "[load-method=fork-external-attach]";
+    
+    List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid) {
+        try {
+            if (helperIdleTimeoutMillis > 0) {
+                return attachHelper().attachAll(agents, pid);
+            }
+            // Single fork for all agents: a helper that serves exactly one request
+            AttachHelperProcess helper = new AttachHelperProcess(this, 0);
+            try {
+                return helper.attachAll(agents, pid);
+            } finally {
+                helper.stop();
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException("Could not self-attach to current VM using external process", ex);
+        }
     }
+    
+    Process startAttachHelper() throws IOException {
+        // Temporary JAR (if any) must outlive the helper, so it's not released here
+        ExecutableJar executableJar = ExecutableJar.of(cacheDirectory, ExternalAgentLoader.class, Arrays.asList(CLASSES));
+        List<String> fullCommand = javaCommand(executableJar.file());
+        fullCommand.add(AttachHelperProcess.SERVE_ARG);
+        if (null != alternativeToolsJar) {
+            fullCommand.add(escape(alternativeToolsJar.getCanonicalPath()));
+        }
+        
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Using Java command: " + fullCommand);
+        }
+        
+        ProcessBuilder processBuilder = new ProcessBuilder().directory(new File(".").getCanonicalFile()).command(fullCommand);
+        // Options from the environment may load agents into the helper and 
+        // these agents may write to the standard output used by the protocol
+        Map<String, String> environment = processBuilder.environment();
+        for (String variable : JAVA_OPTIONS_VARIABLES) {
+            environment.remove(variable);
+        }
+        return CurrentProcess.redirectErrorAndStart(processBuilder);
+    }
+    
+    private AttachHelperProcess attachHelper() throws IOException {
+        String key = (null == alternativeToolsJar ? "" : alternativeToolsJar.getCanonicalPath()) + File.pathSeparator +
+                     (null == cacheDirectory ? "" : cacheDirectory.getCanonicalPath()) + File.pathSeparator +
+                     helperIdleTimeoutMillis;
+        synchronized (ATTACH_HELPERS) {
+            AttachHelperProcess helper = ATTACH_HELPERS.get(key);
+            if (null == helper) {
+                helper = new AttachHelperProcess(this, helperIdleTimeoutMillis);
+                ATTACH_HELPERS.put(key, helper);
+            }
+            return helper;
+        }
+    }
+    
+    private static List<String> javaCommand(File runnableJar) throws IOException {
+        String javaCommand = 
+            System.getProperty("java.home") + File.separatorChar + "bin" + File.separatorChar +
+            (System.getProperty("os.name", "").toLowerCase(Locale.US).contains("windows") ? "java.exe" : "java");
 
-    private static File createJarFile(Set<Class<?>> classes, Class<?> mainClass) throws IOException {
-        File agentJar = File.createTempFile("tal-ext", ".jar");
-        agentJar.deleteOnExit();
+        String classPath = System.getProperty("java.class.path");
+        if (null == classPath || classPath.length() == 0) {
+            classPath = "./";
+        }
 
-        Manifest manifest = new Manifest();
-        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, mainClass.getName());
-        JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(agentJar), manifest);
-        Set<Class<?>> allClasses = new HashSet<Class<?>>(classes);
-        allClasses.add(mainClass);
-        try {
-            for (Class<?> clazz : allClasses) {
-                String resourceName = clazz.getName().replace('.', '/') + ".class";
-                jarOutputStream.putNextEntry(new JarEntry(resourceName));
-                byte[] buffer = new byte[8192];
-                int size;
-                InputStream inputStream = ExternalAgentLoader.class.getResourceAsStream('/' + resourceName);
-                try {
-                    while ((size = inputStream.read(buffer)) > 0) {
-                        jarOutputStream.write(buffer, 0, size);
-                    }
-                    jarOutputStream.closeEntry();
-                } finally {
-                    try {
-                        inputStream.close();
-                    } catch (IOException exIgnore) {
+        return new ArrayList<String>(Arrays.asList(
+            escape(javaCommand), 
+            "-cp", 
+            escape(classPath), 
+            "-jar",
+            escape(runnableJar.getCanonicalPath())
+        ));
+    }
 
-                    }
-                }
-            }
-        } finally {
-            jarOutputStream.close();
-        }
-        return agentJar;
+    @Override
+    public String toString() {
+        return getClass().getName() + "[load-method=" + 
+               (helperIdleTimeoutMillis > 0 ? "external-attach-helper" : "fork-external-attach") + "]";
     }
+    
+    private static final String[] JAVA_OPTIONS_VARIABLES = {
+        "JAVA_TOOL_OPTIONS", "_JAVA_OPTIONS", "JDK_JAVA_OPTIONS", "IBM_JAVA_OPTIONS", "OPENJ9_JAVA_OPTIONS"
+    };
+    
+    private static final Class<?>[] CLASSES = {
+        AgentLoader.class, 
+        BatchAgentLoader.class, 
+        AgentLoaderException.class, 
+        AgentSpec.class,
+        AgentOutcome.class,
+        AbstractAgentLoader.class,
+        SafeAgentLoader.class, 
+        LocalAgentLoader.class, 
+        CurrentProcess.class,
+        VMAttachAPI.class,
+        VMAttachImpl.class,
+        AttachHelperProcess.class,
+        AttachHelperProcess.DestroyTask.class
+    };
+    
+    private static final Map<String, AttachHelperProcess> ATTACH_HELPERS = new HashMap<String, AttachHelperProcess>();
 
     private static String escape(String value) {
         return value.contains(" ") ? '"' + value + '"' : value;
@@ -0,0 +1,144 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.core;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Ownership and permission checks of files and directories, verified via NIO file 
+ * attributes (accessed reflectively, so Java 7+ is required). Symbolic links are 
+ * never followed. When the checks are not possible, files are considered not private.
+ */
+final class FileOwnership {
+    
+    private final static Logger LOGGER = Logger.getLogger(FileOwnership.class.getName());
+    
+    private FileOwnership() {}
+    
+    /**
+     * Checks that the file is owned by the current user and is not writable 
+     * (or, when <code>denyRead</code> is set, not accessible at all) by group or others
+     */
+    static boolean isPrivate(File file, boolean denyRead) {
+        if (null == GET_OWNER) {
+            // File ownership can't be verified before Java 7
+            return false;
+        }
+        try {
+            Object path = TO_PATH.invoke(file);
+            Object owner = GET_OWNER.invoke(null, path, NO_FOLLOW_LINKS);
+            if (!owner.equals(currentUser())) {
+                return false;
+            }
+            Set<?> permissions;
+            try {
+                permissions = (Set<?>)GET_POSIX_FILE_PERMISSIONS.invoke(null, path, NO_FOLLOW_LINKS);
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof UnsupportedOperationException) {
+                    // Not a POSIX file system (Windows), owner check is all we can do
+                    return true;
+                }
+                throw ex;
+            }
+            for (Object permission : permissions) {
+                String name = ((Enum<?>)permission).name();
+                if ("GROUP_WRITE".equals(name) || "OTHERS_WRITE".equals(name)) {
+                    return false;
+                }
+                if (denyRead && ("GROUP_READ".equals(name) || "OTHERS_READ".equals(name))) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception ex) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "Unable to verify ownership of " + file, ex);
+            }
+            return false;
+        }
+    }
+    
+    private static synchronized Object currentUser() throws Exception {
+        if (null == currentUser) {
+            // The owner of a file just created is the current user by definition
+            File probe = File.createTempFile("tal-ext", ".tmp");
+            try {
+                currentUser = GET_OWNER.invoke(null, TO_PATH.invoke(probe), NO_FOLLOW_LINKS);
+            } finally {
+                probe.delete();
+            }
+        }
+        return currentUser;
+    }
+    
+    private static Object currentUser;
+    
+    private static final Method TO_PATH;
+    private static final Method GET_OWNER;
+    private static final Method GET_POSIX_FILE_PERMISSIONS;
+    private static final Object NO_FOLLOW_LINKS;
+    static {
+        Method toPath = null;
+        Method getOwner = null;
+        Method getPosixFilePermissions = null;
+        Object noFollowLinks = null;
+        try {
+            // java.nio.file is available since Java 7 only
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            Class<?> filesClass = Class.forName("java.nio.file.Files");
+            Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+            Class<?> linkOptionsClass = Array.newInstance(linkOptionClass, 0).getClass();
+            
+            noFollowLinks = Array.newInstance(linkOptionClass, 1);
+            Array.set(noFollowLinks, 0, linkOptionClass.getField("NOFOLLOW_LINKS").get(null));
+            
+            toPath = File.class.getMethod("toPath");
+            getOwner = filesClass.getMethod("getOwner", pathClass, linkOptionsClass);
+            getPosixFilePermissions = filesClass.getMethod("getPosixFilePermissions", pathClass, linkOptionsClass);
+        } catch (Exception ex) {
+            toPath = null;
+            getOwner = null;
+            getPosixFilePermissions = null;
+            noFollowLinks = null;
+        }
+        TO_PATH = toPath;
+        GET_OWNER = getOwner;
+        GET_POSIX_FILE_PERMISSIONS = getPosixFilePermissions;
+        NO_FOLLOW_LINKS = noFollowLinks;
+    }
+}
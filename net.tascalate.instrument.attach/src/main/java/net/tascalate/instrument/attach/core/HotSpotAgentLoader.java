@@ -0,0 +1,407 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.tascalate.instrument.attach.api.AgentLoader;
+import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentLoaders;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+
+/**
+ * <p>Loads agents into the current VM by talking to the HotSpot attach listener directly, 
+ * without <code>jdk.attach</code> module. The self-attach restriction of JDK 9+ is enforced 
+ * by the <code>jdk.attach</code> code only, so the listener itself accepts commands from 
+ * the very same process.
+ * <p>The listener is started on demand: the trigger file <code>.attach_pid&lt;pid&gt;</code>
+ * is created in the temporary directory of the VM, then <code>SIGQUIT</code> is raised and 
+ * the loader waits for the <code>.java_pid&lt;pid&gt;</code> UNIX domain socket to appear.
+ * The signal is sent with the system <code>kill</code> utility, i.e. a short-living process 
+ * is started (but not a JVM). It can't be raised in-process: <code>sun.misc.Signal.raise</code> 
+ * rejects signals without Java handlers, and the VM reserves <code>SIGQUIT</code>; even the 
+ * internal <code>JVM_RaiseSignal</code> delivers the signal to the calling thread, while HotSpot 
+ * blocks <code>SIGQUIT</code> in all threads but the VM one, so it stays pending.
+ * The listener is started by one thread at a time. Like <code>jdk.attach</code>, the loader 
+ * connects to the socket only when it's owned by the current user and is not accessible 
+ * by group or others; responses are awaited no longer than the read timeout (2 minutes 
+ * by default, see the system property "net.tascalate.instrument.attach.listener.readTimeout").
+ * <p>When the listener does not come up (or its socket fails the checks), the attach is delegated to the fall-back loader 
+ * (if any) and the listener is not tried again. Requires HotSpot VM, Java 16+ 
+ * (for UNIX domain socket channels) on Linux / macOS.
+ */
+public class HotSpotAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
+
+    private final static Logger LOGGER = Logger.getLogger(HotSpotAgentLoader.class.getName());
+    private final long timeoutMillis;
+    private final SafeAgentLoader fallback;
+
+    public HotSpotAgentLoader() {
+        this(DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public HotSpotAgentLoader(long timeoutMillis) {
+        this(timeoutMillis, null);
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for the attach listener to start
+     * @param fallback loader to use when the attach listener can't be started, may be null
+     */
+    public HotSpotAgentLoader(long timeoutMillis, SafeAgentLoader fallback) {
+        this.timeoutMillis = timeoutMillis;
+        this.fallback = fallback;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return ERROR_MESSAGES.isEmpty() && !listenerFailed;
+    }
+
+    @Override
+    public void attach(String agentJarPath, String agentParams) {
+        File socketFile = attachListenerSocket();
+        if (null == socketFile) {
+            fallback().attach(agentJarPath, agentParams);
+        } else {
+            load(socketFile, agentJarPath, agentParams);
+        }
+    }
+
+    /**
+     * Starts the attach listener once for all agents, or delegates the whole batch 
+     * to the fall-back loader when the listener is not available.
+     */
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        File socketFile = attachListenerSocket();
+        if (null == socketFile) {
+            return AgentLoaders.attachAll(fallback(), agents);
+        }
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        for (AgentSpec agent : agents) {
+            try {
+                load(socketFile, agent.getJarPath(), agent.getParams());
+                result.add(AgentOutcome.loaded(agent));
+            } catch (RuntimeException ex) {
+                result.add(AgentOutcome.failed(agent, ex));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[load-method=attach-listener-protocol, is-available=" + isAvailable() + "]";
+    }
+
+    private File attachListenerSocket() {
+        if (!ERROR_MESSAGES.isEmpty()) {
+            throw new AgentLoaderException(
+                getClass().getName() + " is unavailable in current environment", null, ERROR_MESSAGES
+            );
+        }
+        try {
+            return startAttachListener(CurrentProcess.pid());
+        } catch (IOException ex) {
+            throw new AgentLoaderException("Unable to communicate with the attach listener of the current VM", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new AgentLoaderException("Interrupted while waiting for the attach listener of the current VM", ex);
+        }
+    }
+
+    private AgentLoader fallback() {
+        if (null != fallback && fallback.isAvailable()) {
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Attach listener is not available, using " + fallback);
+            }
+            return fallback;
+        }
+        throw new AgentLoaderException(
+            "Attach listener of the current VM is not available: not started in " + timeoutMillis + 
+            " ms or its socket file is not private"
+        );
+    }
+
+    private static void load(File socketFile, String agentJarPath, String agentParams) {
+        String options = null == agentParams ? agentJarPath : agentJarPath + '=' + agentParams;
+        try {
+            String response = execute(socketFile, "load", "instrument", "false", options);
+            checkLoadResponse(response);
+        } catch (IOException ex) {
+            throw new AgentLoaderException("Unable to communicate with the attach listener of the current VM", ex);
+        }
+    }
+
+    private File startAttachListener(long pid) throws IOException, InterruptedException {
+        // Concurrent starts would signal the VM twice (the second signal prints thread dump), 
+        // and one thread could delete the trigger file of another
+        synchronized (LISTENER_LOCK) {
+            if (listenerFailed) {
+                return null;
+            }
+            File socketFile = new File(TMP_DIR, ".java_pid" + pid);
+            if (socketFile.exists()) {
+                return verifiedSocket(socketFile);
+            }
+            
+            File triggerFile = new File(TMP_DIR, ".attach_pid" + pid);
+            triggerFile.createNewFile();
+            try {
+                sendQuitSignal(pid);
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                long delay = 1;
+                while (!socketFile.exists()) {
+                    if (System.currentTimeMillis() > deadline) {
+                        // Don't signal the process over and over again
+                        listenerFailed = true;
+                        return null;
+                    }
+                    Thread.sleep(delay);
+                    delay = Math.min(delay * 2, 20);
+                }
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer("Attach listener is started, socket file: " + socketFile);
+                }
+                return verifiedSocket(socketFile);
+            } finally {
+                triggerFile.delete();
+            }
+        }
+    }
+
+    private static File verifiedSocket(File socketFile) {
+        // Same check as jdk.attach does: the socket is created by the VM of the current user 
+        // and is accessible to the owner only, otherwise it may be a socket of an impostor
+        if (FileOwnership.isPrivate(socketFile, true)) {
+            return socketFile;
+        }
+        if (LOGGER.isLoggable(Level.WARNING)) {
+            LOGGER.warning("Socket file " + socketFile + " is not owned by the current user or is accessible by others, ignoring it");
+        }
+        listenerFailed = true;
+        return null;
+    }
+
+    private static void sendQuitSignal(long pid) throws IOException, InterruptedException {
+        Process process = new ProcessBuilder(KILL_COMMAND, "-QUIT", String.valueOf(pid))
+                              .redirectErrorStream(true)
+                              .start();
+        int ret = process.waitFor();
+        if (ret != 0) {
+            throw new AgentLoaderException("Unable to send SIGQUIT to the current VM, exit code is: " + ret);
+        }
+    }
+
+    private static String execute(File socketFile, String command, String... args) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        writeString(request, PROTOCOL_VERSION);
+        writeString(request, command);
+        for (String arg : args) {
+            writeString(request, arg);
+        }
+
+        SocketChannel channel = SocketChannel.open(unixDomainSocketAddress(socketFile));
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(request.toByteArray());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            
+            // Channels of UNIX domain sockets have no SO_TIMEOUT, so the read timeout is
+            // implemented with a selector
+            channel.configureBlocking(false);
+            Selector selector = Selector.open();
+            try {
+                channel.register(selector, SelectionKey.OP_READ);
+                ByteArrayOutputStream response = new ByteArrayOutputStream();
+                buffer = ByteBuffer.allocate(1024);
+                long deadline = System.currentTimeMillis() + READ_TIMEOUT_MILLIS;
+                while (true) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("No response from the attach listener within " + READ_TIMEOUT_MILLIS + " ms");
+                    }
+                    selector.select(remaining);
+                    selector.selectedKeys().clear();
+                    int size = channel.read(buffer);
+                    if (size < 0) {
+                        break;
+                    }
+                    response.write(buffer.array(), 0, buffer.position());
+                    buffer.clear();
+                }
+                return new String(response.toByteArray(), "UTF-8");
+            } finally {
+                selector.close();
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) throws UnsupportedEncodingException {
+        byte[] bytes = value.getBytes("UTF-8");
+        if (bytes.length > MAX_ARG_LENGTH) {
+            throw new AgentLoaderException("Attach listener argument is too long: " + value);
+        }
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+
+    private static void checkLoadResponse(String response) {
+        // First line is the completion status of the command, 
+        // next one is the return code of Agent_OnAttach -- either plain or prefixed
+        int newLine = response.indexOf('\n');
+        String status = (newLine < 0 ? response : response.substring(0, newLine)).trim();
+        String message = newLine < 0 ? "" : response.substring(newLine + 1).trim();
+        if (!"0".equals(status)) {
+            throw new AgentLoaderException(
+                "Attach listener of the current VM failed to load agent: " + 
+                (message.length() > 0 ? message : "status " + status)
+            );
+        }
+        if (message.startsWith(RETURN_CODE_PREFIX)) {
+            message = message.substring(RETURN_CODE_PREFIX.length()).trim();
+        }
+        if (message.length() > 0 && !"0".equals(message)) {
+            throw new AgentLoaderException("Internal error in Java Agent, Agent_OnAttach failed: " + message);
+        }
+    }
+
+    private static SocketAddress unixDomainSocketAddress(File socketFile) throws IOException {
+        try {
+            return (SocketAddress)UNIX_DOMAIN_SOCKET_ADDRESS_OF.invoke(null, socketFile.getPath());
+        } catch (IllegalAccessException ex) {
+            throw new IOException(ex.getMessage());
+        } catch (InvocationTargetException ex) {
+            throw new IOException(String.valueOf(ex.getCause()));
+        }
+    }
+
+    static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+    private static final String PROTOCOL_VERSION = "1";
+    private static final int MAX_ARG_LENGTH = 1024;
+    private static final String RETURN_CODE_PREFIX = "return code:";
+    // Agent_OnAttach (i.e. agentmain of the agent) runs before the response is sent
+    private static final long READ_TIMEOUT_MILLIS = 
+        Long.getLong("net.tascalate.instrument.attach.listener.readTimeout", 120000L).longValue();
+    private static final Object LISTENER_LOCK = new Object();
+    
+    private static final String TMP_DIR;
+    private static final Method UNIX_DOMAIN_SOCKET_ADDRESS_OF;
+    private static final String KILL_COMMAND;
+    private static final List<String> ERROR_MESSAGES;
+    
+    private static volatile boolean listenerFailed;
+
+    static {
+        List<String> messages = new ArrayList<String>();
+
+        String osName = System.getProperty("os.name", "").toLowerCase(Locale.US);
+        if (osName.startsWith("windows")) {
+            messages.add("Attach listener protocol via UNIX domain sockets is not supported on Windows");
+        }
+        // HotSpot uses fixed "/tmp" on Linux and per-user temporary directory on macOS
+        TMP_DIR = osName.contains("mac") ? System.getProperty("java.io.tmpdir") : "/tmp";
+
+        Method unixDomainSocketAddressOf = null;
+        try {
+            unixDomainSocketAddressOf = Class.forName("java.net.UnixDomainSocketAddress")
+                                             .getMethod("of", String.class);
+        } catch (ClassNotFoundException ex) {
+            messages.add("UNIX domain socket channels require Java 16 or above");
+        } catch (NoSuchMethodException ex) {
+            messages.add("UNIX domain socket channels require Java 16 or above");
+        }
+        UNIX_DOMAIN_SOCKET_ADDRESS_OF = unixDomainSocketAddressOf;
+
+        // Attach listener protocol is specific to HotSpot (OpenJ9 reacts to SIGQUIT with javacore)
+        String vmName = System.getProperty("java.vm.name", "");
+        if (!(vmName.contains("HotSpot") || vmName.contains("OpenJDK")) || vmName.contains("J9")) {
+            messages.add("Attach listener protocol is supported only by HotSpot VM, current VM is " + vmName);
+        }
+        String className = "sun.instrument.InstrumentationImpl";
+        try {
+            Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            messages.add(
+                "Attach listener Agent injection only works with a Sun-derived VM " +
+                "(no class " + className + " found)"
+            );
+        }
+
+        String killCommand = null;
+        for (String candidate : new String[] {"/bin/kill", "/usr/bin/kill"}) {
+            if (new File(candidate).isFile()) {
+                killCommand = candidate;
+                break;
+            }
+        }
+        if (null == killCommand) {
+            messages.add("Unable to send signals (no kill utility found)");
+        }
+        KILL_COMMAND = killCommand;
+
+        try {
+            for (String arg : java.lang.management.ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if ("-XX:+DisableAttachMechanism".equals(arg)) {
+                    messages.add("Attach mechanism is disabled with -XX:+DisableAttachMechanism");
+                } else if ("-Xrs".equals(arg)) {
+                    messages.add("Signals handling is reduced with -Xrs, so attach listener may not be started");
+                }
+            }
+        } catch (SecurityException ex) {
+            messages.add("Unable to inspect VM arguments");
+        }
+
+        ERROR_MESSAGES = Collections.unmodifiableList(messages);
+    }
+}
@@ -31,9 +31,48 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 class LegacyProcessOutputRedirector extends ProcessOutputRedirector {
     @Override
     ProcessBuilder redirectOutput(ProcessBuilder processBuilder) {
         return processBuilder;
     }
+    
+    @Override
+    Process redirectErrorAndStart(ProcessBuilder processBuilder) throws IOException {
+        Process process = processBuilder.redirectErrorStream(false).start();
+        // No Redirect.INHERIT before Java 7, copy manually
+        // so the child process never blocks on a full pipe
+        new StreamPump(process.getErrorStream(), System.err).start();
+        return process;
+    }
+    
+    static class StreamPump extends Thread {
+        private final InputStream in;
+        private final OutputStream out;
+        
+        StreamPump(InputStream in, OutputStream out) {
+            super("tascalate-process-stream-pump");
+            setDaemon(true);
+            this.in = in;
+            this.out = out;
+        }
+        
+        @Override
+        public void run() {
+            byte[] buffer = new byte[1024];
+            int size;
+            try {
+                while ((size = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, size);
+                    out.flush();
+                }
+            } catch (IOException ex) {
+                // Process is gone
+            }
+        }
+    }
 }
@@ -43,6 +43,8 @@ import java.util.Collections;
 import java.util.List;
 
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 public class LocalAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
 
@@ -135,6 +137,59 @@ public class LocalAgentLoader extends AbstractAgentLoader implements SafeAgentLo
         }
     }
 
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        return attachAll(agents, CurrentProcess.pid());
+    }
+
+    List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid) {
+        if (null == vmAttach) {
+            throw new AgentLoaderException(
+                getClass().getName() + " is unavailable in current environment",                     
+                null, ERROR_MESSAGES
+            );
+        }
+
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        Throwable exception = null;
+        try {
+            Object vm = vmAttach.invoke(null, String.valueOf(pid));
+            try {
+                for (AgentSpec agent : agents) {
+                    try {
+                        vmLoadAgent.invoke(vm, agent.getJarPath(), agent.getParams());
+                        result.add(AgentOutcome.loaded(agent));
+                    } catch (InvocationTargetException ex) {
+                        Throwable cause = null == ex.getCause() ? ex : ex.getCause();
+                        result.add(AgentOutcome.failed(
+                            agent, new AgentLoaderException("Unable to load Java Agent " + agent, cause)
+                        ));
+                    }
+                }
+            } finally {
+                vmDetach.invoke(vm);
+            }
+        } catch (InvocationTargetException ex) {
+            exception = ex.getCause();
+            if (exception == null) {
+                exception = ex;
+            }
+        } catch (Error ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Throwable t) {
+            exception = t;
+        }
+
+        if (exception != null) {
+            throw new AgentLoaderException(
+                "Agent injection not supported on this platform due to unknown reason", exception
+            );
+        }
+        return result;
+    }
+
     boolean isExternalAttachPossible() {
         return vmAttach != null;
     }
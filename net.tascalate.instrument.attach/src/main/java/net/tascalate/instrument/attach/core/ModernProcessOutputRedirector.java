@@ -31,10 +31,17 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.io.IOException;
+
 class ModernProcessOutputRedirector extends ProcessOutputRedirector {
 
     @Override
     ProcessBuilder redirectOutput(ProcessBuilder processBuilder) {
         return processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
     }
+
+    @Override
+    Process redirectErrorAndStart(ProcessBuilder processBuilder) throws IOException {
+        return processBuilder.redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
 }
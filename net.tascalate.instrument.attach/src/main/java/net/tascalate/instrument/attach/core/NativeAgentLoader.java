@@ -31,6 +31,9 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.sun.jna.Library;
 import com.sun.jna.Native;
 import com.sun.jna.Pointer;
@@ -39,6 +42,8 @@ import com.sun.jna.ptr.PointerByReference;
 
 import net.tascalate.instrument.attach.api.AgentLoader;
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 class NativeAgentLoader extends AbstractAgentLoader {
     /**
@@ -46,7 +51,7 @@ class NativeAgentLoader extends AbstractAgentLoader {
      * with the VM core.
      */
     static interface LibInstrument extends Library {
-        void Agent_OnAttach(Pointer vm, String name, Pointer Reserved);
+        int Agent_OnAttach(Pointer vm, String name, Pointer Reserved);
     }
 
     /**
@@ -58,6 +63,25 @@ class NativeAgentLoader extends AbstractAgentLoader {
     }
 
     public void attach(String agentJarPath, String agentParams) {
+        loadAgent(currentVM(), agentJarPath, agentParams);
+    }
+
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        Pointer vm = currentVM();
+        List<AgentOutcome> result = new ArrayList<AgentOutcome>(agents.size());
+        for (AgentSpec agent : agents) {
+            try {
+                loadAgent(vm, agent.getJarPath(), agent.getParams());
+                result.add(AgentOutcome.loaded(agent));
+            } catch (AgentLoaderException ex) {
+                result.add(AgentOutcome.failed(agent, ex));
+            }
+        }
+        return result;
+    }
+
+    private static Pointer currentVM() {
         PointerByReference vms = new PointerByReference();
         IntByReference found = new IntByReference();
         LIB_JVM.JNI_GetCreatedJavaVMs(vms, 1, found);
@@ -65,13 +89,18 @@ class NativeAgentLoader extends AbstractAgentLoader {
         if (found.getValue() == 0) {
             throw new AgentLoaderException("Failed to access current VirtualMachine via JNI");
         }
+        return vms.getValue();
+    }
 
-        Pointer vm = vms.getValue();
+    private static void loadAgent(Pointer vm, String agentJarPath, String agentParams) {
         StringBuilder options = new StringBuilder(agentJarPath);
         if (null != agentParams) {
             options.append('=').append(agentParams);
         }
-        LIB_INSTRUMENT.Agent_OnAttach(vm, options.toString(), null);
+        int result = LIB_INSTRUMENT.Agent_OnAttach(vm, options.toString(), null);
+        if (result != 0) {
+            throw new AgentLoaderException("Internal error in Java Agent, Agent_OnAttach failed: " + result);
+        }
     }
 
     @Override
@@ -31,6 +31,9 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.io.IOException;
+
 abstract class ProcessOutputRedirector {
     abstract ProcessBuilder redirectOutput(ProcessBuilder processBuilder);
+    abstract Process redirectErrorAndStart(ProcessBuilder processBuilder) throws IOException;
 }
@@ -45,20 +45,29 @@ public class SafeAgentLoaderChain implements Iterable<SafeAgentLoader> {
         int idx = 0;
 
         public boolean hasNext() {
-            return idx < 3;
+            return idx < 5;
         }
 
         public SafeAgentLoader next() {
             SafeAgentLoader result;
             switch (idx) {
                 case 0:
+                    // Java 22+, no third-party libraries
+                    result = new ForeignNativeAgentLoader();
+                    break;
+                case 1:
                     // Works only if JNA lib is added
                     result = new SafeNativeAgentLoader();
                     break;
-                case 1:
+                case 2:
+                    // Self-attach without jdk.attach, Java 16+ on HotSpot,
+                    // falls through to the local one if the listener doesn't start
+                    result = new HotSpotAgentLoader(HotSpotAgentLoader.DEFAULT_TIMEOUT_MILLIS, new LocalAgentLoader());
+                    break;
+                case 3:
                     result = new LocalAgentLoader();
                     break;
-                case 2:
+                case 4:
                     // We ever hardly select this option
                     // because the previous one uses
                     /// external agent as fall-back
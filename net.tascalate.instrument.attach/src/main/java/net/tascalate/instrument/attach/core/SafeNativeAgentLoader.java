@@ -37,6 +37,9 @@ import java.util.List;
 
 import net.tascalate.instrument.attach.api.AgentLoader;
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentLoaders;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 public class SafeNativeAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
 
@@ -59,6 +62,20 @@ public class SafeNativeAgentLoader extends AbstractAgentLoader implements SafeAg
 
     @Override
     public void attach(String agentJarPath, String agentParams) {
+        delegate().attach(agentJarPath, agentParams);
+    }
+
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        return AgentLoaders.attachAll(delegate(), agents);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "@@@" + NativeAgentLoader.INSTANCE.toString();
+    }
+    
+    private static AgentLoader delegate() {
         if (ERROR_MESSAGES.isEmpty()) {
             AgentLoader delegate = null;
             Error error = null;
@@ -71,7 +88,7 @@ public class SafeNativeAgentLoader extends AbstractAgentLoader implements SafeAg
             }
             
             if (null == error) {
-                delegate.attach(agentJarPath, agentParams);
+                return delegate;
             } else {
                 throw new AgentLoaderException(
                     unavailable(), error,
@@ -82,11 +99,6 @@ public class SafeNativeAgentLoader extends AbstractAgentLoader implements SafeAg
             throw new AgentLoaderException(unavailable(), null, ERROR_MESSAGES);
         }
     }
-
-    @Override
-    public String toString() {
-        return getClass().getName() + "@@@" + NativeAgentLoader.INSTANCE.toString();
-    }
     
     private static String unavailable() {
         return SafeNativeAgentLoader.class.getPackage().getName() + ".NativeAgentLoader is unavailable in current environment";
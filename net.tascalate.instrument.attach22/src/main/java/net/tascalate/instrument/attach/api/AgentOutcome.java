@@ -0,0 +1,76 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.api;
+
+/**
+ * Result of loading a single agent within {@link BatchAgentLoader#attachAll(java.util.List)}.
+ */
+public final class AgentOutcome {
+    private final AgentSpec agent;
+    private final Throwable error;
+
+    private AgentOutcome(AgentSpec agent, Throwable error) {
+        this.agent = agent;
+        this.error = error;
+    }
+
+    public static AgentOutcome loaded(AgentSpec agent) {
+        return new AgentOutcome(agent, null);
+    }
+
+    public static AgentOutcome failed(AgentSpec agent, Throwable error) {
+        if (null == error) {
+            throw new IllegalArgumentException("Error may not be null");
+        }
+        return new AgentOutcome(agent, error);
+    }
+
+    public AgentSpec getAgent() {
+        return agent;
+    }
+
+    public boolean isLoaded() {
+        return null == error;
+    }
+
+    /**
+     * @return the reason the agent was not loaded, or null when it was loaded successfully
+     */
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return agent + (null == error ? " [loaded]" : " [failed: " + error + "]");
+    }
+}
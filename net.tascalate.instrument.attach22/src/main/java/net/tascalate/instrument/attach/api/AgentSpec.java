@@ -0,0 +1,88 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.api;
+
+/**
+ * Java Agent JAR with optional agent arguments, an element of 
+ * the batch passed to {@link BatchAgentLoader#attachAll(java.util.List)}.
+ */
+public final class AgentSpec {
+    private final String jarPath;
+    private final String params;
+
+    private AgentSpec(String jarPath, String params) {
+        if (null == jarPath) {
+            throw new IllegalArgumentException("Agent JAR path may not be null");
+        }
+        this.jarPath = jarPath;
+        this.params = params;
+    }
+
+    public static AgentSpec of(String jarPath) {
+        return new AgentSpec(jarPath, null);
+    }
+
+    public static AgentSpec of(String jarPath, String params) {
+        return new AgentSpec(jarPath, params);
+    }
+
+    public String getJarPath() {
+        return jarPath;
+    }
+
+    public String getParams() {
+        return params;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * jarPath.hashCode() + (null == params ? 0 : params.hashCode());
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof AgentSpec)) {
+            return false;
+        }
+        AgentSpec that = (AgentSpec)other;
+        return jarPath.equals(that.jarPath) && 
+               (null == params ? null == that.params : params.equals(that.params));
+    }
+
+    @Override
+    public String toString() {
+        return null == params ? jarPath : jarPath + '=' + params;
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.attach.core;
+
+import java.io.File;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SymbolLookup;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+
+/**
+ * <p>Loads agents via <code>JNI_GetCreatedJavaVMs</code> / <code>Agent_OnAttach</code> 
+ * native calls, like {@link NativeAgentLoader}, but with Foreign Function &amp; Memory API 
+ * of Java 22+ rather than with JNA. Downcalls are restricted operations, so the loader 
+ * is available only when native access is enabled for this library (like with
+ * <code>--enable-native-access</code> command-line option) -- otherwise nothing is linked,
+ * and the JVM doesn't warn about restricted methods used.
+ */
+public class ForeignNativeAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
+
+    @Override
+    public boolean isAvailable() {
+        return ERROR_MESSAGES.isEmpty();
+    }
+
+    @Override
+    public void attach(String agentJarPath, String agentParams) {
+        checkAvailable();
+        try (Arena arena = Arena.ofConfined()) {
+            loadAgent(arena, currentVM(arena), agentJarPath, agentParams);
+        }
+    }
+
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        checkAvailable();
+        List<AgentOutcome> result = new ArrayList<>(agents.size());
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment vm = currentVM(arena);
+            for (AgentSpec agent : agents) {
+                try {
+                    loadAgent(arena, vm, agent.getJarPath(), agent.getParams());
+                    result.add(AgentOutcome.loaded(agent));
+                } catch (AgentLoaderException ex) {
+                    result.add(AgentOutcome.failed(agent, ex));
+                }
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getName() + "[v22, load-method=FFM(JNI), is-available=" + isAvailable() + "]";
+    }
+
+    private void checkAvailable() {
+        if (!ERROR_MESSAGES.isEmpty()) {
+            throw new AgentLoaderException(
+                getClass().getName() + " is unavailable in current environment", null, ERROR_MESSAGES
+            );
+        }
+    }
+
+    private static MemorySegment currentVM(Arena arena) {
+        try {
+            MemorySegment vms = arena.allocate(ValueLayout.ADDRESS);
+            MemorySegment found = arena.allocate(ValueLayout.JAVA_INT);
+            int result = (int)JNI_GET_CREATED_JAVA_VMS.invokeExact(vms, 1, found);
+            if (result != 0 || found.get(ValueLayout.JAVA_INT, 0) == 0) {
+                throw new AgentLoaderException("Failed to access current VirtualMachine via JNI");
+            }
+            return vms.get(ValueLayout.ADDRESS, 0);
+        } catch (AgentLoaderException ex) {
+            throw ex;
+        } catch (Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new AgentLoaderException("Agent injection not supported on this platform due to unknown reason", ex);
+        }
+    }
+
+    private static void loadAgent(Arena arena, MemorySegment vm, String agentJarPath, String agentParams) {
+        String options = null == agentParams ? agentJarPath : agentJarPath + '=' + agentParams;
+        try {
+            byte[] bytes = options.getBytes(NATIVE_CHARSET);
+            MemorySegment nativeOptions = arena.allocate(bytes.length + 1);
+            MemorySegment.copy(bytes, 0, nativeOptions, ValueLayout.JAVA_BYTE, 0, bytes.length);
+            nativeOptions.set(ValueLayout.JAVA_BYTE, bytes.length, (byte)0);
+
+            int result = (int)AGENT_ON_ATTACH.invokeExact(vm, nativeOptions, MemorySegment.NULL);
+            if (result != 0) {
+                throw new AgentLoaderException("Internal error in Java Agent, Agent_OnAttach failed: " + result);
+            }
+        } catch (AgentLoaderException ex) {
+            throw ex;
+        } catch (Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new AgentLoaderException("Agent injection not supported on this platform due to unknown reason", ex);
+        }
+    }
+
+    private static MemorySegment findSymbol(String[] libraryDirs, String libraryName, String symbolName) {
+        String javaHome = System.getProperty("java.home");
+        String fileName = System.mapLibraryName(libraryName);
+        for (String libraryDir : libraryDirs) {
+            File file = new File(new File(javaHome, libraryDir), fileName);
+            if (file.isFile()) {
+                // Libraries are loaded by the VM anyway, so keep them for the VM lifetime
+                return SymbolLookup.libraryLookup(file.toPath(), Arena.global())
+                                   .find(symbolName)
+                                   .orElseThrow(() -> new IllegalStateException(
+                                       "No symbol " + symbolName + " in " + file
+                                   ));
+            }
+        }
+        throw new IllegalStateException("Unable to find library " + fileName + " in " + javaHome);
+    }
+
+    private static final Charset NATIVE_CHARSET;
+    private static final MethodHandle JNI_GET_CREATED_JAVA_VMS;
+    private static final MethodHandle AGENT_ON_ATTACH;
+    private static final List<String> ERROR_MESSAGES;
+
+    static {
+        List<String> messages = new ArrayList<>();
+        NATIVE_CHARSET = Charset.forName(System.getProperty("native.encoding", "UTF-8"));
+
+        String className = "sun.instrument.InstrumentationImpl";
+        try {
+            Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            messages.add(
+                "Native (JNI) Agent injection only works with a Sun-derived VM " +
+                "(no class " + className + " found)"
+            );
+        }
+
+        MethodHandle getCreatedJavaVMs = null;
+        MethodHandle agentOnAttach = null;
+        Module module = ForeignNativeAgentLoader.class.getModule();
+        if (!module.isNativeAccessEnabled()) {
+            messages.add(
+                "Native access is not enabled for " + 
+                (module.isNamed() ? "module " + module.getName() : "unnamed modules") + 
+                ", use --enable-native-access=" + (module.isNamed() ? module.getName() : "ALL-UNNAMED")
+            );
+        } else {
+            try {
+                Linker linker = Linker.nativeLinker();
+                getCreatedJavaVMs = linker.downcallHandle(
+                    findSymbol(new String[] {"lib/server", "lib/client", "bin/server", "bin/client"}, "jvm", "JNI_GetCreatedJavaVMs"),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.JAVA_INT, ValueLayout.ADDRESS)
+                );
+                agentOnAttach = linker.downcallHandle(
+                    findSymbol(new String[] {"lib", "bin"}, "instrument", "Agent_OnAttach"),
+                    FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS)
+                );
+            } catch (RuntimeException | Error ex) {
+                // Lookup / linkage errors
+                messages.add("Unable to create JVM/Instrument native (FFM) api bridge: " + ex);
+            }
+        }
+        JNI_GET_CREATED_JAVA_VMS = getCreatedJavaVMs;
+        AGENT_ON_ATTACH = agentOnAttach;
+
+        ERROR_MESSAGES = Collections.unmodifiableList(messages);
+    }
+}
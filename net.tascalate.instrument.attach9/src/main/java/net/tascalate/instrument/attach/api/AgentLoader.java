@@ -34,6 +34,6 @@ package net.tascalate.instrument.attach.api;
 public interface AgentLoader {
 
     void attach(String agentJarPath);
-
+    
     void attach(String agentJarPath, String agentParams);
 }
@@ -31,6 +31,7 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.io.IOException;
 import java.lang.ProcessBuilder.Redirect;
 
 final class CurrentProcess {
@@ -45,4 +46,8 @@ final class CurrentProcess {
     static ProcessBuilder redirectOutputOf(ProcessBuilder processBuilder) {
         return processBuilder.redirectOutput(Redirect.INHERIT);
     }
+    
+    static Process redirectErrorAndStart(ProcessBuilder processBuilder) throws IOException {
+        return processBuilder.redirectError(Redirect.INHERIT).start();
+    }
 }
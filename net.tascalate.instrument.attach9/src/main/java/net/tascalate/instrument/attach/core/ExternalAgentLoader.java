@@ -32,6 +32,10 @@
 package net.tascalate.instrument.attach.core;
 
 import java.io.File;
+import java.util.List;
+
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
 
@@ -52,4 +56,8 @@ public class ExternalAgentLoader extends AbstractAgentLoader implements SafeAgen
     void attach(String agentJarPath, String agentParams, long pid) {
         throw new UnsupportedOperationException();
     }
+    
+    List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid) {
+        throw new UnsupportedOperationException();
+    }
 }
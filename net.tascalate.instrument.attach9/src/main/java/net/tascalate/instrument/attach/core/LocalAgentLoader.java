@@ -32,10 +32,13 @@
 package net.tascalate.instrument.attach.core;
 
 import java.io.File;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 public class LocalAgentLoader extends AbstractAgentLoader implements SafeAgentLoader {
 
@@ -103,6 +106,46 @@ public class LocalAgentLoader extends AbstractAgentLoader implements SafeAgentLo
         }
     }
 
+    @Override
+    public List<AgentOutcome> attachAll(List<AgentSpec> agents) {
+        return attachAll(agents, CurrentProcess.pid());
+    }
+
+    List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid) {
+        if (null == DELEGATE) {
+            throw new AgentLoaderException(LocalAgentLoader.class.getName() + " is unavailable in current environment", DELEGATE_ERROR);
+        }
+        long ownPid = CurrentProcess.pid();
+        if (ownPid == pid) {
+            // Self-attach
+            if (!IS_SELF_ATTACH_POSSIBLE) {
+                if (forkExternalAttachIfNecessary) {
+                    if (LOGGER.isLoggable(Level.FINER)) {
+                        LOGGER.finer("Forking process for external attach");
+                    }
+                    return new ExternalAgentLoader(null).attachAll(agents, ownPid);
+                } else {
+                    throw new AgentLoaderException(
+                        "Self-attach is disabled. For JDK 9+ please set system property\"jdk.attach.allowAttachSelf\" to true"
+                    );
+                }
+            }
+        }
+        
+        try {
+            return DELEGATE.attachAll(agents, pid, isInsideFork);
+        } catch (AgentLoaderException ex) {
+            // Already converted
+            throw ex;
+        } catch (Exception ex) {
+            if (forkExternalAttachIfNecessary) {
+                return new ExternalAgentLoader(null).attachAll(agents, ownPid);
+            } else {
+                throw new AgentLoaderException(ex);
+            }
+        }
+    }
+
     boolean isExternalAttachPossible() {
         return true;
     }
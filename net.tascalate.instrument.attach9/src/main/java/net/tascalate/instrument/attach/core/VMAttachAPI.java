@@ -31,6 +31,12 @@
  */
 package net.tascalate.instrument.attach.core;
 
+import java.util.List;
+
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
+
 abstract class VMAttachAPI {
     abstract void attach(String jarFile, String param, long pid, boolean isInsideFork) throws Exception;
+    abstract List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid, boolean isInsideFork) throws Exception;
 }
@@ -32,6 +32,8 @@
 package net.tascalate.instrument.attach.core;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.sun.tools.attach.AgentInitializationException;
 import com.sun.tools.attach.AgentLoadException;
@@ -39,6 +41,8 @@ import com.sun.tools.attach.AttachNotSupportedException;
 import com.sun.tools.attach.VirtualMachine;
 
 import net.tascalate.instrument.attach.api.AgentLoaderException;
+import net.tascalate.instrument.attach.api.AgentOutcome;
+import net.tascalate.instrument.attach.api.AgentSpec;
 
 class VMAttachImpl extends VMAttachAPI {
     @Override
@@ -46,27 +50,7 @@ class VMAttachImpl extends VMAttachAPI {
         try {
             VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
             try {
-                if (isInsideFork) {
-                    // Spawn attach in separate thread to avoid 
-                    // having library classes on stack -- 
-                    // otherwise it may cause an error in transformers
-                    Throwable[] errorRef = new Throwable[1];
-                    new Thread(() -> {
-                        try {
-                            vm.loadAgent(jarFile, param);
-                        } catch (Error | Exception ex) {
-                            errorRef[0] = ex;
-                        }
-                    }).join();
-                    Throwable error = errorRef[0];
-                    if (error instanceof Error) {
-                        throw (Error)error;
-                    } else if (null != error) {
-                        throw (Exception)error;
-                    }
-                } else {
-                    vm.loadAgent(jarFile, param);
-                }
+                loadAgent(vm, jarFile, param, isInsideFork);
             } finally {
                 vm.detach();
             }
@@ -78,5 +62,60 @@ class VMAttachImpl extends VMAttachAPI {
             throw new AgentLoaderException("Internal error in Java Agent", ex);
         }
     }
+    
+    @Override
+    List<AgentOutcome> attachAll(List<AgentSpec> agents, long pid, boolean isInsideFork) throws Exception {
+        try {
+            VirtualMachine vm = VirtualMachine.attach(String.valueOf(pid));
+            try {
+                List<AgentOutcome> result = new ArrayList<>(agents.size());
+                for (AgentSpec agent : agents) {
+                    try {
+                        loadAgent(vm, agent.getJarPath(), agent.getParams(), isInsideFork);
+                        result.add(AgentOutcome.loaded(agent));
+                    } catch (AgentInitializationException | AgentLoadException ex) {
+                        result.add(AgentOutcome.failed(agent, new AgentLoaderException("Internal error in Java Agent", ex)));
+                    } catch (IOException ex) {
+                        result.add(AgentOutcome.failed(
+                            agent, new AgentLoaderException("Agent injection not supported on this platform due to unknown reason", ex)
+                        ));
+                    }
+                }
+                return result;
+            } finally {
+                vm.detach();
+            }
+        } catch (AttachNotSupportedException ex) {
+            throw ex;
+        } catch (IOException ex) {
+            throw new AgentLoaderException("Agent injection not supported on this platform due to unknown reason", ex);
+        }
+    }
+    
+    private static void loadAgent(VirtualMachine vm, String jarFile, String param, boolean isInsideFork) throws Exception {
+        if (isInsideFork) {
+            // Spawn attach in separate thread to avoid 
+            // having library classes on stack -- 
+            // otherwise it may cause an error in transformers
+            Throwable[] errorRef = new Throwable[1];
+            Thread thread = new Thread(() -> {
+                try {
+                    vm.loadAgent(jarFile, param);
+                } catch (Error | Exception ex) {
+                    errorRef[0] = ex;
+                }
+            });
+            thread.start();
+            thread.join();
+            Throwable error = errorRef[0];
+            if (error instanceof Error) {
+                throw (Error)error;
+            } else if (null != error) {
+                throw (Exception)error;
+            }
+        } else {
+            vm.loadAgent(jarFile, param);
+        }
+    }
    
 }
@@ -0,0 +1,108 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.lang.invoke.MethodHandles;
+
+class HiddenClassSupport {
+    private HiddenClassSupport() {}
+    
+    static boolean isSupported() {
+        return true;
+    }
+    
+    static ClassEmitter create(Object hostClassOrLookup, HiddenClassOption... options) {
+        MethodHandles.Lookup lookup;
+        if (hostClassOrLookup instanceof MethodHandles.Lookup) {
+            lookup = (MethodHandles.Lookup)hostClassOrLookup;
+        } else if (hostClassOrLookup instanceof Class) {
+            lookup = privateLookupIn((Class<?>)hostClassOrLookup);
+        } else {
+            throw new IllegalArgumentException(
+                "First parameter should be either" + 
+                " instance of " + Class.class.getName() + 
+                " or instance of " + MethodHandles.Lookup.class.getName()
+            );
+        }
+        if (!lookup.hasFullPrivilegeAccess()) {
+            Class<?> hostClass = lookup.lookupClass();
+            throw new IllegalStateException(
+                "Insufficient access to define hidden classes with the host " + hostClass.getName() + 
+                " (module " + describe(hostClass.getModule()) + ").\n" +
+                "Please supply " + MethodHandles.Lookup.class.getName() + " with full privilege access " +
+                "created by the host class itself"
+            );
+        }
+        return new HiddenClassEmitter(lookup, toClassOptions(options));
+    }
+    
+    private static MethodHandles.Lookup privateLookupIn(Class<?> hostClass) {
+        Module hostModule = hostClass.getModule();
+        if (!SELF_MODULE.canRead(hostModule)) {
+            SELF_MODULE.addReads(hostModule);
+        }
+        try {
+            return MethodHandles.privateLookupIn(hostClass, MethodHandles.lookup());
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(
+                "Package " + hostClass.getPackageName() + " of module " + describe(hostModule) + " " + 
+                "should be open to module " + describe(SELF_MODULE), ex 
+            );
+        }
+    }
+    
+    private static MethodHandles.Lookup.ClassOption[] toClassOptions(HiddenClassOption... options) {
+        if (null == options) {
+            return new MethodHandles.Lookup.ClassOption[0];
+        }
+        MethodHandles.Lookup.ClassOption[] result = new MethodHandles.Lookup.ClassOption[options.length];
+        for (int i = 0; i < options.length; i++) {
+            switch (options[i]) {
+                case NESTMATE:
+                    result[i] = MethodHandles.Lookup.ClassOption.NESTMATE;
+                    break;
+                case STRONG:
+                    result[i] = MethodHandles.Lookup.ClassOption.STRONG;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported option " + options[i]);
+            }
+        }
+        return result;
+    }
+    
+    private static String describe(Module module) {
+        return module.isNamed() ? module.getName() : "ALL-UNNAMED";
+    }
+    
+    private static final Module SELF_MODULE = HiddenClassSupport.class.getModule();
+}
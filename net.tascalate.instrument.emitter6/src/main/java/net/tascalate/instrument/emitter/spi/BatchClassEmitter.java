@@ -0,0 +1,55 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * <p>The contract to define a set of interdependent classes at once. Implementations 
+ * parse class headers once, define super-types before sub-types and acquire 
+ * locks / resolve lookups once per group of classes from the same package.
+ * 
+ * @author vsilaev
+ * @see ClassEmitters#defineClasses(ClassEmitter, Collection, ProtectionDomain)
+ */
+public interface BatchClassEmitter extends ClassEmitter {
+    /**
+     * Defines all classes supplied
+     * @param classBytes class files of classes to define, in any order
+     * @param protectionDomain protection domain of classes
+     * @return map of defined classes by binary name, in the order of definition
+     * @throws ClassEmitterException if any class may not be defined
+     */
+    Map<String, Class<?>> defineClasses(Collection<byte[]> classBytes, ProtectionDomain protectionDomain) throws ClassEmitterException;
+}
@@ -0,0 +1,164 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Orders a batch of class files for definition: super-types go before 
+ * sub-types while classes of the same package are kept together whenever possible.
+ */
+final class ClassBatch {
+    private ClassBatch() {}
+    
+    static final class Entry {
+        final String className;
+        final String packageName;
+        final byte[] classBytes;
+        
+        private final ClassFileHeader header;
+        private final List<Entry> dependents = new ArrayList<Entry>(2);
+        private int unresolved;
+        
+        Entry(ClassFileHeader header, byte[] classBytes) {
+            this.header = header;
+            this.className = header.getClassName();
+            this.packageName = ReflectionHelper.packageNameOf(className);
+            this.classBytes = classBytes;
+        }
+        
+        String packageKey() {
+            return null == packageName ? "" : packageName;
+        }
+    }
+    
+    /**
+     * @return runs of classes from the same package, in the order of definition
+     */
+    static List<List<Entry>> groupsOf(Collection<byte[]> classes) {
+        if (null == classes) {
+            throw new IllegalArgumentException("\"classes\" may not be null");
+        }
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        for (byte[] classBytes : classes) {
+            Entry entry = new Entry(ClassFileHeader.of(classBytes), classBytes);
+            if (null != entries.put(entry.className, entry)) {
+                throw new IllegalArgumentException("Duplicate class " + entry.className + " in batch");
+            }
+        }
+        // Only dependencies within the batch matter, others are resolved by the JVM as usual
+        for (Entry entry : entries.values()) {
+            link(entries, entry, entry.header.getSuperClassName());
+            for (String interfaceName : entry.header.getInterfaceNames()) {
+                link(entries, entry, interfaceName);
+            }
+        }
+        
+        Map<String, LinkedList<Entry>> ready = new LinkedHashMap<String, LinkedList<Entry>>();
+        for (Entry entry : entries.values()) {
+            if (0 == entry.unresolved) {
+                enqueue(ready, entry);
+            }
+        }
+        
+        List<List<Entry>> result = new ArrayList<List<Entry>>();
+        List<Entry> group = null;
+        String currentPackage = null;
+        int count = 0;
+        while (true) {
+            LinkedList<Entry> queue = null == group ? null : ready.get(currentPackage);
+            if (null == queue || queue.isEmpty()) {
+                queue = null;
+                for (LinkedList<Entry> candidate : ready.values()) {
+                    if (!candidate.isEmpty()) {
+                        queue = candidate;
+                        break;
+                    }
+                }
+                if (null == queue) {
+                    break;
+                }
+                group = new ArrayList<Entry>();
+                result.add(group);
+            }
+            Entry entry = queue.removeFirst();
+            group.add(entry);
+            count++;
+            currentPackage = entry.packageKey();
+            for (Entry dependent : entry.dependents) {
+                if (0 == --dependent.unresolved) {
+                    enqueue(ready, dependent);
+                }
+            }
+        }
+        if (count < entries.size()) {
+            throw new IllegalArgumentException("Cyclic inheritance between classes in batch");
+        }
+        return result;
+    }
+    
+    static Map<String, Class<?>> defineClasses(ClassEmitter emitter, 
+                                               Collection<byte[]> classes, 
+                                               ProtectionDomain protectionDomain) throws ClassEmitterException {
+        Map<String, Class<?>> result = new LinkedHashMap<String, Class<?>>();
+        for (List<Entry> group : groupsOf(classes)) {
+            for (Entry entry : group) {
+                result.put(entry.className, emitter.defineClass(entry.classBytes, protectionDomain));
+            }
+        }
+        return result;
+    }
+    
+    private static void link(Map<String, Entry> entries, Entry entry, String superTypeName) {
+        Entry superType = null == superTypeName ? null : entries.get(superTypeName);
+        if (null != superType) {
+            superType.dependents.add(entry);
+            entry.unresolved++;
+        }
+    }
+    
+    private static void enqueue(Map<String, LinkedList<Entry>> ready, Entry entry) {
+        String packageKey = entry.packageKey();
+        LinkedList<Entry> queue = ready.get(packageKey);
+        if (null == queue) {
+            queue = new LinkedList<Entry>();
+            ready.put(packageKey, queue);
+        }
+        queue.add(entry);
+    }
+}
@@ -31,6 +31,10 @@
  */
 package net.tascalate.instrument.emitter.spi;
 
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Map;
+
 import net.tascalate.instrument.emitter.spi.ClassEmitters;
 
 public final class ClassEmitters {
@@ -41,6 +45,87 @@ public final class ClassEmitters {
         return ReflectionHelper.getClassName(classBytes);
     }
 
+    /**
+     * Checks whether hidden classes may be defined, i.e. the code runs on Java 15 or above
+     * @return <code>true</code> if {@link #ofHidden(Object, HiddenClassOption...)} is supported
+     */
+    public static boolean isHiddenClassSupported() {
+        return HiddenClassSupport.isSupported();
+    }
+    
+    /**
+     * <p>Creates an emitter that defines hidden classes in the nest / package of the host class.
+     * Hidden classes are not discoverable by name, so they are suitable for auxiliary 
+     * generated classes only. Without {@link HiddenClassOption#STRONG} option hidden classes 
+     * may be unloaded independently of their class loader once unreferenced.
+     * <p>The host may be specified either as a class or as a <code>java.lang.invoke.MethodHandles.Lookup</code>
+     * with full privilege access created by the host class itself. Since Java 14 a class may be used 
+     * only when it resides in the same module as this library (like for Java Agents and 
+     * applications both on the class path) -- otherwise private lookup loses module access 
+     * that is required to define hidden classes.
+     * <p>Class files should declare classes in the same package as the host class; 
+     * protection domain passed to the emitter is ignored -- the one of the host class is used.
+     * @param hostClassOrLookup the class or the lookup that provides access context for hidden classes 
+     * @param options hidden class options
+     * @return hidden class emitter
+     * @throws IllegalStateException if hidden classes are not supported by the current Java version
+     * or the access to the host class is insufficient
+     */
+    public static ClassEmitter ofHidden(Object hostClassOrLookup, HiddenClassOption... options) {
+        if (null == hostClassOrLookup) {
+            throw new IllegalArgumentException("\"hostClassOrLookup\" may not be null");
+        }
+        return HiddenClassSupport.create(hostClassOrLookup, options);
+    }
+    
+    /**
+     * Defines a set of interdependent classes with the emitter supplied. Super-types 
+     * are defined before sub-types regardless of the order of <code>classBytes</code>.
+     * @param emitter the emitter to use, emitters that implement {@link BatchClassEmitter} 
+     * define classes more efficiently
+     * @param classBytes class files of classes to define
+     * @param protectionDomain protection domain of classes
+     * @return map of defined classes by binary name, in the order of definition
+     * @throws ClassEmitterException if any class may not be defined
+     */
+    public static Map<String, Class<?>> defineClasses(ClassEmitter emitter, 
+                                                      Collection<byte[]> classBytes, 
+                                                      ProtectionDomain protectionDomain) throws ClassEmitterException {
+        if (emitter instanceof BatchClassEmitter) {
+            return ((BatchClassEmitter)emitter).defineClasses(classBytes, protectionDomain);
+        } else {
+            return ClassBatch.defineClasses(emitter, classBytes, protectionDomain);
+        }
+    }
+    
+    /**
+     * Wraps the emitter so that concurrent requests to define the same class are coalesced 
+     * into a single definition shared by all requesters. Once a class is defined, 
+     * subsequent requests return it right away. Duplicate class definitions caused 
+     * by classes defined elsewhere in the meantime are resolved to the existing class
+     * rather than reported as errors. Definitions are tracked per class loader, 
+     * so all coalescing emitters of the same class loader cooperate regardless of 
+     * the emitter wrapped. The wrapper is useless for hidden class emitters.
+     * @param emitter the emitter to wrap
+     * @param classLoaderOrModule the class loader or the module where classes are defined, 
+     * may be <code>null</code> for the bootstrap class loader
+     * @return coalescing class emitter
+     */
+    public static ClassEmitter coalescing(ClassEmitter emitter, Object classLoaderOrModule) {
+        if (null == emitter) {
+            throw new IllegalArgumentException("\"emitter\" may not be null");
+        }
+        if (emitter instanceof CoalescingClassEmitter) {
+            return emitter;
+        }
+        if (null == classLoaderOrModule || classLoaderOrModule instanceof ClassLoader) {
+            return new CoalescingClassEmitter(emitter, (ClassLoader)classLoaderOrModule);
+        } else {
+            throw new IllegalArgumentException("Second parameter should be either null" + 
+                                               " or instance of " + ClassLoader.class.getName());
+        }
+    }
+    
     public static ClassEmitter of(ClassLoader classLoader) {
         return of(classLoader, true);
     }
@@ -52,7 +137,11 @@ public final class ClassEmitters {
         if (classLoader instanceof ClassEmitter) {
             return (ClassEmitter)classLoader;
         }
-        return new ClassLoaderEmitter(classLoader);
+        ClassEmitter result = EMITTERS_BY_CLASS_LOADER.get(classLoader);
+        if (null == result) {
+            result = EMITTERS_BY_CLASS_LOADER.putIfAbsent(classLoader, new ClassLoaderEmitter(classLoader));
+        }
+        return result;
     }
     
     public static ClassEmitter of(Object moduleOrClass) {
@@ -94,4 +183,8 @@ public final class ClassEmitters {
         }
         return ClassEmitters.of(ReflectionHelper.getBestClassLoader(baseClassLoader, classLoader), mandatory);
     }
+    
+    // ClassLoaderEmitter holds class loader weakly, so eviction works
+    private static final WeakKeyCache<ClassLoader, ClassEmitter> EMITTERS_BY_CLASS_LOADER = 
+        new WeakKeyCache<ClassLoader, ClassEmitter>();
 }
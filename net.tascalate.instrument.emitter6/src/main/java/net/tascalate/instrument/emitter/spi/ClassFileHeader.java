@@ -0,0 +1,330 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lightweight reader of the class file header -- version, access flags, 
+ * this class, super class and interfaces. Unlike a full-blown class reader
+ * it does not index the whole constant pool upfront; entries are located 
+ * on demand, so resolving the class name requires no allocations other than 
+ * the resulting string.
+ * 
+ * @see <a href="https://docs.oracle.com/javase/specs/jvms/se9/html/jvms-4.html">JVMS 4</a>
+ */
+public final class ClassFileHeader {
+    private static final int MAGIC = 0xCAFEBABE;
+    
+    private static final int ACC_INTERFACE = 0x0200;
+    
+    static final int CONSTANT_UTF8                = 1;
+    static final int CONSTANT_INTEGER             = 3;
+    static final int CONSTANT_FLOAT               = 4;
+    static final int CONSTANT_LONG                = 5;
+    static final int CONSTANT_DOUBLE              = 6;
+    static final int CONSTANT_CLASS               = 7;
+    static final int CONSTANT_STRING              = 8;
+    static final int CONSTANT_FIELDREF            = 9;
+    static final int CONSTANT_METHODREF           = 10;
+    static final int CONSTANT_INTERFACE_METHODREF = 11;
+    static final int CONSTANT_NAME_AND_TYPE       = 12;
+    static final int CONSTANT_METHOD_HANDLE       = 15;
+    static final int CONSTANT_METHOD_TYPE         = 16;
+    static final int CONSTANT_DYNAMIC             = 17;
+    static final int CONSTANT_INVOKE_DYNAMIC      = 18;
+    static final int CONSTANT_MODULE              = 19;
+    static final int CONSTANT_PACKAGE             = 20;
+    
+    private final byte[] b;
+    private final int base;
+    // Offset of the access_flags item, i.e. the first byte after the constant pool
+    private final int header;
+    
+    private ClassFileHeader(byte[] b, int base) {
+        this.b = b;
+        this.base = base;
+        this.header = headerOffset(b, base);
+    }
+    
+    public static ClassFileHeader of(byte[] bytes) {
+        return of(bytes, 0);
+    }
+    
+    public static ClassFileHeader of(byte[] bytes, int offset) {
+        if (null == bytes) {
+            throw new IllegalArgumentException("\"bytes\" may not be null");
+        }
+        try {
+            return new ClassFileHeader(bytes, offset);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw truncated(ex);
+        }
+    }
+    
+    public static ClassFileHeader of(ByteBuffer buffer) {
+        if (null == buffer) {
+            throw new IllegalArgumentException("\"buffer\" may not be null");
+        }
+        if (buffer.hasArray()) {
+            return of(buffer.array(), buffer.arrayOffset() + buffer.position());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return of(bytes, 0);
+        }
+    }
+    
+    /**
+     * Resolves a binary name (dot-separated) of the class defined by the class file.
+     * Scans the constant pool only as far as necessary and allocates nothing 
+     * but the resulting string and a single character buffer it's decoded to.
+     * @param bytes the class file
+     * @return the binary class name
+     */
+    public static String classNameOf(byte[] bytes) {
+        if (null == bytes) {
+            throw new IllegalArgumentException("\"bytes\" may not be null");
+        }
+        try {
+            int header = headerOffset(bytes, 0);
+            return classNameAt(bytes, 0, null, readUnsignedShort(bytes, header + 2), true);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw truncated(ex);
+        }
+    }
+    
+    public int getMinorVersion() {
+        return readUnsignedShort(b, base + 4);
+    }
+    
+    public int getMajorVersion() {
+        return readUnsignedShort(b, base + 6);
+    }
+    
+    public int getAccessFlags() {
+        return readUnsignedShort(b, header);
+    }
+    
+    public boolean isInterface() {
+        return (getAccessFlags() & ACC_INTERFACE) != 0;
+    }
+    
+    public String getInternalName() {
+        return classNameAt(b, base, null, readUnsignedShort(b, header + 2), false);
+    }
+    
+    public String getClassName() {
+        return classNameAt(b, base, null, readUnsignedShort(b, header + 2), true);
+    }
+    
+    public String getPackageName() {
+        return ReflectionHelper.packageNameOf(getClassName());
+    }
+    
+    /**
+     * @return the binary name of the super class or <code>null</code> 
+     * for <code>java.lang.Object</code> and <code>module-info</code>
+     */
+    public String getSuperClassName() {
+        int index = readUnsignedShort(b, header + 4);
+        return 0 == index ? null : classNameAt(b, base, null, index, true);
+    }
+    
+    public String[] getInterfaceNames() {
+        int count = readUnsignedShort(b, header + 6);
+        String[] result = new String[count];
+        if (count > 0) {
+            int[] offsets = constantPoolOffsets(b, base);
+            for (int i = 0, offset = header + 8; i < count; i++, offset += 2) {
+                int index = readUnsignedShort(b, offset);
+                result[i] = classNameAt(b, base, offsets, index, true);
+            }
+        }
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return "ClassFileHeader[" + getClassName() + ", version " + getMajorVersion() + "." + getMinorVersion() + "]";
+    }
+    
+    static void checkMagic(byte[] b, int base) {
+        if (base < 0 || b.length - base < 10 || readInt(b, base) != MAGIC) {
+            throw new IllegalArgumentException("Not a class file");
+        }
+    }
+    
+    static int headerOffset(byte[] b, int base) {
+        checkMagic(b, base);
+        int offset = constantPoolEntryOffset(b, base, readUnsignedShort(b, base + 8));
+        if (offset + 8 > b.length) {
+            throw new ArrayIndexOutOfBoundsException(offset + 8);
+        }
+        return offset;
+    }
+    
+    /**
+     * Locates constant pool entry by scanning the pool from the start.
+     * Passing the constant pool count as <code>index</code> returns the offset 
+     * of the first byte after the constant pool.
+     */
+    static int constantPoolEntryOffset(byte[] b, int base, int index) {
+        int offset = base + 10;
+        for (int i = 1; i < index; ) {
+            int tag = b[offset];
+            offset += constantPoolEntrySize(b, offset);
+            i += tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE ? 2 : 1;
+        }
+        return offset;
+    }
+    
+    static int[] constantPoolOffsets(byte[] b, int base) {
+        int count = readUnsignedShort(b, base + 8);
+        int[] result = new int[count];
+        int offset = base + 10;
+        for (int i = 1; i < count; ) {
+            int tag = b[offset];
+            result[i] = offset;
+            offset += constantPoolEntrySize(b, offset);
+            i += tag == CONSTANT_LONG || tag == CONSTANT_DOUBLE ? 2 : 1;
+        }
+        return result;
+    }
+
+    static int constantPoolEntrySize(byte[] b, int offset) {
+        switch (b[offset]) {
+            case CONSTANT_UTF8:
+                return 3 + readUnsignedShort(b, offset + 1);
+            case CONSTANT_CLASS:
+            case CONSTANT_STRING:
+            case CONSTANT_METHOD_TYPE:
+            case CONSTANT_MODULE:
+            case CONSTANT_PACKAGE:
+                return 3;
+            case CONSTANT_METHOD_HANDLE:
+                return 4;
+            case CONSTANT_INTEGER:
+            case CONSTANT_FLOAT:
+            case CONSTANT_FIELDREF:
+            case CONSTANT_METHODREF:
+            case CONSTANT_INTERFACE_METHODREF:
+            case CONSTANT_NAME_AND_TYPE:
+            case CONSTANT_DYNAMIC:
+            case CONSTANT_INVOKE_DYNAMIC:
+                return 5;
+            case CONSTANT_LONG:
+            case CONSTANT_DOUBLE:
+                return 9;
+            default:
+                throw new IllegalArgumentException("Invalid constant pool tag " + b[offset] + " at offset " + offset);
+        }
+    }
+    
+    static String classNameAt(byte[] b, int base, int[] offsets, int index, boolean binaryName) {
+        int classEntry = entryOffset(b, base, offsets, index);
+        if (b[classEntry] != CONSTANT_CLASS) {
+            throw new IllegalArgumentException("Constant pool entry #" + index + " is not a class");
+        }
+        int nameIndex = readUnsignedShort(b, classEntry + 1);
+        int nameEntry = entryOffset(b, base, offsets, nameIndex);
+        if (b[nameEntry] != CONSTANT_UTF8) {
+            throw new IllegalArgumentException("Constant pool entry #" + nameIndex + " is not an UTF8 string");
+        }
+        return readUtf8(b, nameEntry + 1, binaryName);
+    }
+    
+    private static int entryOffset(byte[] b, int base, int[] offsets, int index) {
+        if (index <= 0 || index >= readUnsignedShort(b, base + 8)) {
+            throw new IllegalArgumentException("Invalid constant pool index #" + index);
+        }
+        return null == offsets ? constantPoolEntryOffset(b, base, index) : offsets[index];
+    }
+    
+    /**
+     * Decodes modified UTF-8 string starting at <code>offset</code> (the length item).
+     * Pure ASCII strings that need no conversion are copied as is without 
+     * an intermediate character buffer. Otherwise the string is decoded in a single pass 
+     * to a single character buffer, converting separators on the fly, and ASCII characters
+     * (almost all class names consist of them) take the shortest path there.
+     * @param binaryName whether to convert internal name to the binary one ('/' to '.')
+     */
+    @SuppressWarnings("deprecation")
+    static String readUtf8(byte[] b, int offset, boolean binaryName) {
+        int length = readUnsignedShort(b, offset);
+        int start = offset + 2;
+        int end = start + length;
+        if (end > b.length) {
+            throw new ArrayIndexOutOfBoundsException(end);
+        }
+        if (!binaryName) {
+            boolean ascii = true;
+            for (int i = start; ascii && i < end; i++) {
+                ascii = b[i] > 0;
+            }
+            if (ascii) {
+                return new String(b, 0, start, length);
+            }
+        }
+        char[] chars = new char[length];
+        int count = 0;
+        for (int i = start; i < end; ) {
+            int c = b[i++] & 0xFF;
+            if ((c & 0x80) == 0) {
+                // 0xxxxxxx
+            } else if ((c & 0xE0) == 0xC0) {
+                // 110xxxxx 10xxxxxx
+                c = ((c & 0x1F) << 6) | (b[i++] & 0x3F);
+            } else {
+                // 1110xxxx 10xxxxxx 10xxxxxx
+                c = ((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6) | (b[i++] & 0x3F);
+            }
+            chars[count++] = binaryName && c == '/' ? '.' : (char)c;
+        }
+        return new String(chars, 0, count);
+    }
+    
+    static int readUnsignedShort(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 8) | (b[offset + 1] & 0xFF);
+    }
+    
+    static int readInt(byte[] b, int offset) {
+        return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16) | 
+               ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+    }
+    
+    static IllegalArgumentException truncated(ArrayIndexOutOfBoundsException ex) {
+        IllegalArgumentException result = new IllegalArgumentException("Truncated or malformed class file");
+        result.initCause(ex);
+        return result;
+    }
+}
@@ -33,13 +33,18 @@ package net.tascalate.instrument.emitter.spi;
 
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationTargetException;
 import java.security.AccessControlContext;
 import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-class ClassLoaderEmitter implements ClassEmitter {
+class ClassLoaderEmitter implements BatchClassEmitter {
     private final Reference<ClassLoader> classLoaderRef;
     private final ClassLoaderAPI api;
     private final AccessControlContext accessCtx;
@@ -51,32 +56,107 @@ class ClassLoaderEmitter implements ClassEmitter {
     private ClassLoaderEmitter(ClassLoader classLoader, ClassLoaderAPI classLoaderAPI) {
         classLoaderRef = new WeakReference<ClassLoader>(classLoader);
         api = classLoaderAPI;
-        accessCtx = AccessController.getContext();
+        accessCtx = SecuritySupport.getContext();
     }
     
     private Class<?> defineClass(String className, 
                                  byte[] classBytes, 
                                  ClassLoader classLoader,
-                                 ProtectionDomain protectionDomain) throws Exception {
+                                 ProtectionDomain protectionDomain) throws ClassEmitterException {
         try {
-            Object lock = api.getClassLoadingLock(classLoader, className);
-            Class<?> clazz;
-            synchronized (lock) {
-                clazz = api.findLoadedClass(classLoader, className);
-                if (null == clazz) {
-                    String packageName = ReflectionHelper.packageNameOf(className);
-                    if (null != packageName) {
-                        Package p = api.getPackage(classLoader, packageName);
-                        if (null == p) {
-                            p = api.definePackage(classLoader, packageName);
+            if (USE_CLASS_LOADING_LOCK) {
+                Object lock = api.getClassLoadingLock(classLoader, className);
+                synchronized (lock) {
+                    DefinitionDepth.enter();
+                    try {
+                        definePackageIfNecessary(classLoader, ReflectionHelper.packageNameOf(className));
+                        return defineClassIfNecessary(className, classBytes, classLoader, protectionDomain);
+                    } finally {
+                        DefinitionDepth.exit();
+                    }
+                }
+            } else {
+                Object lock = DEFINITION_LOCKS.lock(classLoader, className);
+                DefinitionDepth.enter();
+                try {
+                    definePackageIfNecessary(classLoader, ReflectionHelper.packageNameOf(className));
+                    return defineClassIfNecessary(className, classBytes, classLoader, protectionDomain);
+                } finally {
+                    DefinitionDepth.exit();
+                    DEFINITION_LOCKS.unlock(lock);
+                }
+            }
+        } catch (Error ex) {
+            throw ex;
+        } catch (RuntimeException ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new ClassEmitterException(ex);
+        }
+    }
+    
+    private Map<String, Class<?>> defineClasses(List<List<ClassBatch.Entry>> groups,
+                                                ClassLoader classLoader,
+                                                ProtectionDomain protectionDomain) throws ClassEmitterException {
+        Map<String, Class<?>> result = new LinkedHashMap<String, Class<?>>();
+        try {
+            for (List<ClassBatch.Entry> group : groups) {
+                ClassBatch.Entry first = group.get(0);
+                if (!USE_CLASS_LOADING_LOCK) {
+                    definePackageIfNecessary(classLoader, first.packageName);
+                    for (ClassBatch.Entry entry : group) {
+                        Object lock = DEFINITION_LOCKS.lock(classLoader, entry.className);
+                        DefinitionDepth.enter();
+                        try {
+                            result.put(
+                                entry.className, 
+                                defineClassIfNecessary(entry.className, entry.classBytes, classLoader, protectionDomain)
+                            );
+                        } finally {
+                            DefinitionDepth.exit();
+                            DEFINITION_LOCKS.unlock(lock);
+                        }
+                    }
+                    continue;
+                }
+                Object groupLock = api.getClassLoadingLock(classLoader, first.className);
+                if (groupLock == classLoader) {
+                    // Not a parallel-capable class loader -- single lock for all classes
+                    synchronized (groupLock) {
+                        DefinitionDepth.enter();
+                        try {
+                            definePackageIfNecessary(classLoader, first.packageName);
+                            for (ClassBatch.Entry entry : group) {
+                                result.put(
+                                    entry.className, 
+                                    defineClassIfNecessary(entry.className, entry.classBytes, classLoader, protectionDomain)
+                                );
+                            }
+                        } finally {
+                            DefinitionDepth.exit();
                         }
                     }
-                    clazz = api.defineClass(classLoader, className, classBytes, protectionDomain);
                 } else {
-                    // throw ex???
+                    // Per-class locks
+                    for (ClassBatch.Entry entry : group) {
+                        synchronized (api.getClassLoadingLock(classLoader, entry.className)) {
+                            DefinitionDepth.enter();
+                            try {
+                                if (entry == first) {
+                                    definePackageIfNecessary(classLoader, first.packageName);
+                                }
+                                result.put(
+                                    entry.className, 
+                                    defineClassIfNecessary(entry.className, entry.classBytes, classLoader, protectionDomain)
+                                );
+                            } finally {
+                                DefinitionDepth.exit();
+                            }
+                        }
+                    }
                 }
             }
-            return clazz;            
+            return result;
         } catch (Error ex) {
             throw ex;
         } catch (RuntimeException ex) {
@@ -86,6 +166,52 @@ class ClassLoaderEmitter implements ClassEmitter {
         }
     }
     
+    private void definePackageIfNecessary(ClassLoader classLoader, String packageName) throws Throwable {
+        if (null != packageName) {
+            Package p = api.getPackage(classLoader, packageName);
+            if (null == p) {
+                try {
+                    p = api.definePackage(classLoader, packageName);
+                } catch (Throwable ex) {
+                    // Without class loading lock the package may be defined concurrently
+                    if (!(unwrap(ex) instanceof IllegalArgumentException) || 
+                        null == api.getPackage(classLoader, packageName)) {
+                        throw ex;
+                    }
+                }
+            }
+        }
+    }
+    
+    private Class<?> defineClassIfNecessary(String className, 
+                                            byte[] classBytes, 
+                                            ClassLoader classLoader,
+                                            ProtectionDomain protectionDomain) throws Throwable {
+        Class<?> clazz = api.findLoadedClass(classLoader, className);
+        if (null == clazz) {
+            try {
+                clazz = api.defineClass(classLoader, className, classBytes, protectionDomain);
+            } catch (Throwable ex) {
+                // Without class loading lock the class loader itself 
+                // may define the class concurrently (duplicate class definition)
+                if (!(unwrap(ex) instanceof LinkageError)) {
+                    throw ex;
+                }
+                clazz = api.findLoadedClass(classLoader, className);
+                if (null == clazz) {
+                    throw ex;
+                }
+            }
+        } else {
+            // throw ex???
+        }
+        return clazz;
+    }
+    
+    private static Throwable unwrap(Throwable ex) {
+        return ex instanceof InvocationTargetException && null != ex.getCause() ? ex.getCause() : ex;
+    }
+    
     @Override
     public final Class<?> defineClass(final byte[] classBytes, 
                                       final ProtectionDomain protectionDomain) throws ClassEmitterException {
@@ -95,6 +221,9 @@ class ClassLoaderEmitter implements ClassEmitter {
         }
         
         final String className = ReflectionHelper.getClassName(classBytes);
+        if (!SecuritySupport.isPrivilegedActionRequired()) {
+            return defineClass(className, classBytes, classLoader, protectionDomain);
+        }
 
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<Class<?>>() {
@@ -114,6 +243,37 @@ class ClassLoaderEmitter implements ClassEmitter {
         }
     }
     
+    @Override
+    public final Map<String, Class<?>> defineClasses(final Collection<byte[]> classBytes,
+                                                     final ProtectionDomain protectionDomain) throws ClassEmitterException {
+        final ClassLoader classLoader = classLoaderRef.get();
+        if (null == classLoader) {
+            throw new IllegalStateException("ClassLoader is unloaded");
+        }
+        
+        final List<List<ClassBatch.Entry>> groups = ClassBatch.groupsOf(classBytes);
+        if (!SecuritySupport.isPrivilegedActionRequired()) {
+            return defineClasses(groups, classLoader, protectionDomain);
+        }
+        
+        try {
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Map<String, Class<?>>>() {
+                
+                @Override
+                public Map<String, Class<?>> run() throws Exception {
+                    return defineClasses(groups, classLoader, protectionDomain);
+                }
+
+            }, accessCtx);
+        } catch (PrivilegedActionException ex) {
+            if (null != ex.getCause()) {
+                throw wrap(ex.getCause());
+            } else {
+                throw new ClassEmitterException(ex);
+            }
+        }
+    }
+    
     @Override
     public String toString() {
         return getClass().getName() + "[method=reflection, supported-packages=<any>, " + describe() + "]"; 
@@ -121,7 +281,8 @@ class ClassLoaderEmitter implements ClassEmitter {
     
     private String describe() {
         ClassLoader classLoader = classLoaderRef.get();
-        return "v" + api.version() + ", class-loader=" + (null == classLoader ? "<evicted>" : classLoader.toString());
+        return "v" + api.version() + ", locks=" + (USE_CLASS_LOADING_LOCK ? "monitor" : "keyed") + 
+               ", class-loader=" + (null == classLoader ? "<evicted>" : classLoader.toString());
     }
     
     private static ClassEmitterException wrap(Throwable ex) {
@@ -134,6 +295,13 @@ class ClassLoaderEmitter implements ClassEmitter {
     
     
     private static final ClassLoaderAPI CLASS_LOADER_API;
+    // Monitors taken around definition pin virtual threads, so per-class ReentrantLock-s 
+    // may be used instead (opt-in). Unlike the class loading lock they don't exclude 
+    // class loader's own loadClass for the same name -- then a duplicate definition 
+    // by the class loader is resolved to the class already loaded.
+    private static final boolean USE_CLASS_LOADING_LOCK;
+    private static final KeyedLocks DEFINITION_LOCKS = new KeyedLocks();
+    private static final String USE_CLASS_LOADING_LOCK_PROPERTY = "net.tascalate.instrument.emitter.useClassLoadingLock";
     
     static {
         String version = System.getProperty("java.version");
@@ -154,5 +322,6 @@ class ClassLoaderEmitter implements ClassEmitter {
         } else {
             CLASS_LOADER_API = new J9ClassLoaderAPI();
         }
+        USE_CLASS_LOADING_LOCK = !"false".equalsIgnoreCase(System.getProperty(USE_CLASS_LOADING_LOCK_PROPERTY));
     }
 }
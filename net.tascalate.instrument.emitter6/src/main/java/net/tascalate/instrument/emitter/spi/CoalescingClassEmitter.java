@@ -0,0 +1,260 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
+import java.security.ProtectionDomain;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Emitter that shares a single definition among concurrent requests to define 
+ * the same class in the same class loader. Completed definitions are remembered 
+ * (weakly), so subsequent requests return the existing class without parsing 
+ * or defining anything. Whoever comes first wins -- bytes of later requests are ignored.
+ * <p>
+ * A request never waits for an in-flight definition of the same class when doing so
+ * may deadlock: when it comes from the thread that runs that definition (re-entry), 
+ * when the current thread is itself inside a definition and holds its locks, 
+ * or when the current thread holds the monitor of a non-parallel-capable class loader
+ * (the defining thread may need them too). Such requests define the class directly, 
+ * like without coalescing.
+ */
+final class CoalescingClassEmitter implements ClassEmitter {
+    private final ClassEmitter delegate;
+    private final Reference<ClassLoader> classLoaderRef;
+    // Values are either in-flight FutureTask-s or WeakReference-s to defined classes
+    private final ConcurrentMap<String, Object> definitions;
+    private final boolean isParallelCapable;
+    
+    CoalescingClassEmitter(ClassEmitter delegate, ClassLoader classLoader) {
+        this.delegate = delegate;
+        this.classLoaderRef = new WeakReference<ClassLoader>(classLoader);
+        this.definitions = definitionsOf(classLoader);
+        this.isParallelCapable = null == classLoader || isParallelCapable(classLoader);
+    }
+    
+    @Override
+    public Class<?> defineClass(final byte[] classBytes, 
+                                final ProtectionDomain protectionDomain) throws ClassEmitterException {
+        final String className = ReflectionHelper.getClassName(classBytes);
+        while (true) {
+            Object current = definitions.get(className);
+            if (current instanceof WeakReference) {
+                Class<?> existing = (Class<?>)((WeakReference<?>)current).get();
+                if (null != existing) {
+                    return existing;
+                }
+                // Stale entry, define again
+                definitions.remove(className, current);
+                continue;
+            }
+            
+            Definition task;
+            if (null == current) {
+                Definition ownTask = new Definition(new Callable<Class<?>>() {
+                    @Override
+                    public Class<?> call() throws ClassEmitterException {
+                        return defineOrFind(className, classBytes, protectionDomain);
+                    }
+                });
+                Object previous = definitions.putIfAbsent(className, ownTask);
+                if (null != previous) {
+                    // Lost the race, re-check what is there
+                    continue;
+                }
+                DefinitionDepth.enter();
+                try {
+                    ownTask.run();
+                } finally {
+                    DefinitionDepth.exit();
+                }
+                task = ownTask;
+            } else {
+                Definition inFlight = (Definition)current;
+                if (inFlight.owner == Thread.currentThread() || !mayWaitForOthers()) {
+                    return defineOrFind(className, classBytes, protectionDomain);
+                }
+                task = inFlight;
+            }
+            return await(className, task);
+        }
+    }
+    
+    private boolean mayWaitForOthers() {
+        if (DefinitionDepth.isInside()) {
+            // Other definitions may wait for the locks held by the current thread
+            return false;
+        }
+        if (isParallelCapable) {
+            return true;
+        }
+        // Non-parallel-capable class loaders are locked during definition
+        ClassLoader classLoader = classLoaderRef.get();
+        return null == classLoader || !Thread.holdsLock(classLoader);
+    }
+    
+    private Class<?> await(String className, Definition task) throws ClassEmitterException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    Class<?> result = task.get();
+                    definitions.replace(className, task, new WeakReference<Class<?>>(result));
+                    return result;
+                } catch (InterruptedException ex) {
+                    // Definition is short, don't give up -- restore the flag later
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    // Let the next request try again
+                    definitions.remove(className, task);
+                    throw wrap(ex.getCause());
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private Class<?> defineOrFind(String className, 
+                                  byte[] classBytes, 
+                                  ProtectionDomain protectionDomain) throws ClassEmitterException {
+        try {
+            return delegate.defineClass(classBytes, protectionDomain);
+        } catch (LinkageError ex) {
+            Class<?> existing = findDefinedClass(className);
+            if (null == existing) {
+                throw ex;
+            }
+            return existing;
+        } catch (ClassEmitterException ex) {
+            Class<?> existing = ex.getCause() instanceof LinkageError ? findDefinedClass(className) : null;
+            if (null == existing) {
+                throw ex;
+            }
+            return existing;
+        }
+    }
+    
+    private Class<?> findDefinedClass(String className) {
+        // The class was defined bypassing this emitter (duplicate class definition)
+        ClassLoader classLoader = classLoaderRef.get();
+        if (null == classLoader && definitions != BOOTSTRAP_DEFINITIONS) {
+            // Class loader is unloaded
+            return null;
+        }
+        try {
+            Class<?> existing = Class.forName(className, false, classLoader);
+            // Parent class loader may have own class with the same name
+            return existing.getClassLoader() == classLoader ? existing : null;
+        } catch (ClassNotFoundException ex) {
+            return null;
+        } catch (LinkageError ex) {
+            return null;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return getClass().getName() + "[delegate=" + delegate + "]"; 
+    }
+    
+    private static ClassEmitterException wrap(Throwable ex) {
+        if (ex instanceof ClassEmitterException) {
+            return (ClassEmitterException)ex;
+        } else if (ex instanceof RuntimeException) {
+            throw (RuntimeException)ex;
+        } else if (ex instanceof Error) {
+            throw (Error)ex;
+        } else {
+            return new ClassEmitterException(ex);
+        }
+    }
+    
+    private static boolean isParallelCapable(ClassLoader classLoader) {
+        if (null == IS_REGISTERED_AS_PARALLEL_CAPABLE) {
+            // Unknown before Java 9, assume the worst
+            return false;
+        }
+        try {
+            return (Boolean)IS_REGISTERED_AS_PARALLEL_CAPABLE.invoke(classLoader);
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+    
+    private static ConcurrentMap<String, Object> definitionsOf(ClassLoader classLoader) {
+        if (null == classLoader) {
+            return BOOTSTRAP_DEFINITIONS;
+        }
+        ConcurrentMap<String, Object> result = DEFINITIONS_BY_CLASS_LOADER.get(classLoader);
+        if (null == result) {
+            result = DEFINITIONS_BY_CLASS_LOADER.putIfAbsent(
+                classLoader, new ConcurrentHashMap<String, Object>()
+            );
+        }
+        return result;
+    }
+    
+    static final class Definition extends FutureTask<Class<?>> {
+        final Thread owner = Thread.currentThread();
+        
+        Definition(Callable<Class<?>> callable) {
+            super(callable);
+        }
+    }
+    
+    // Shared by all emitters of the same class loader, values reference classes weakly
+    private static final WeakKeyCache<ClassLoader, ConcurrentMap<String, Object>> DEFINITIONS_BY_CLASS_LOADER = 
+        new WeakKeyCache<ClassLoader, ConcurrentMap<String, Object>>();
+    private static final ConcurrentMap<String, Object> BOOTSTRAP_DEFINITIONS = 
+        new ConcurrentHashMap<String, Object>();
+    
+    private static final Method IS_REGISTERED_AS_PARALLEL_CAPABLE;
+    static {
+        Method method;
+        try {
+            // Public since Java 9
+            method = ClassLoader.class.getMethod("isRegisteredAsParallelCapable");
+        } catch (NoSuchMethodException ex) {
+            method = null;
+        }
+        IS_REGISTERED_AS_PARALLEL_CAPABLE = method;
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_CLASS;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_FIELDREF;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_INTERFACE_METHODREF;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_METHODREF;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_NAME_AND_TYPE;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.CONSTANT_UTF8;
+import static net.tascalate.instrument.emitter.spi.ClassFileHeader.readUnsignedShort;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of the class file constant pool that answers whether 
+ * the class references some string, class, annotation, field or method.
+ * The constant pool is scanned once, when the index is created; queries 
+ * compare raw modified UTF-8 bytes and do not decode strings, so 
+ * a {@link java.lang.instrument.ClassFileTransformer} may cheaply reject 
+ * classes it is not interested in before parsing them with a bytecode library.
+ * <p>All class names may be passed either as binary names 
+ * (<code>java.lang.String</code>) or as internal names (<code>java/lang/String</code>).
+ */
+public final class ConstantPoolIndex {
+    private final byte[] b;
+    private final int[] offsets;
+    
+    private ConstantPoolIndex(byte[] b, int base) {
+        ClassFileHeader.checkMagic(b, base);
+        this.b = b;
+        this.offsets = ClassFileHeader.constantPoolOffsets(b, base);
+    }
+    
+    public static ConstantPoolIndex of(byte[] bytes) {
+        return of(bytes, 0);
+    }
+    
+    public static ConstantPoolIndex of(byte[] bytes, int offset) {
+        if (null == bytes) {
+            throw new IllegalArgumentException("\"bytes\" may not be null");
+        }
+        try {
+            return new ConstantPoolIndex(bytes, offset);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw ClassFileHeader.truncated(ex);
+        }
+    }
+    
+    public static ConstantPoolIndex of(ByteBuffer buffer) {
+        if (null == buffer) {
+            throw new IllegalArgumentException("\"buffer\" may not be null");
+        }
+        if (buffer.hasArray()) {
+            return of(buffer.array(), buffer.arrayOffset() + buffer.position());
+        } else {
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.duplicate().get(bytes);
+            return of(bytes, 0);
+        }
+    }
+    
+    /**
+     * Checks whether constant pool contains the UTF-8 string -- 
+     * a member name, a descriptor, a string literal etc.
+     */
+    public boolean referencesUtf8(String value) {
+        if (null == value) {
+            throw new IllegalArgumentException("\"value\" may not be null");
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            int offset = offsets[i];
+            if (offset > 0 && b[offset] == CONSTANT_UTF8 && utf8Equals(offset, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Checks whether the class refers the class specified, i.e. the class is 
+     * instantiated, its members are accessed, it's used in cast / instanceof 
+     * check or it's a super class / interface. 
+     * <p>Note that types that are only mentioned in descriptors (including annotations) 
+     * are not listed as class constants -- use {@link #referencesDescriptor(String)} 
+     * or {@link #referencesAnnotation(String)} for them.
+     */
+    public boolean referencesClass(String className) {
+        String internalName = internalNameOf(className);
+        for (int i = 1; i < offsets.length; i++) {
+            if (isClassNamed(i, CONSTANT_CLASS, internalName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Checks whether the class refers the type as a standalone field descriptor, 
+     * like <code>Ljava/lang/String;</code> -- it's the case for declared fields 
+     * and annotations, but not for types mentioned in method descriptors.
+     */
+    public boolean referencesDescriptor(String className) {
+        return referencesUtf8('L' + internalNameOf(className) + ';');
+    }
+    
+    /**
+     * Checks whether the class may be annotated with the annotation specified, 
+     * either on the class itself or on any of its members. It's a conservative check: 
+     * it returns <code>true</code> whenever the annotation type descriptor is present.
+     */
+    public boolean referencesAnnotation(String annotationClassName) {
+        return referencesDescriptor(annotationClassName);
+    }
+    
+    /**
+     * Checks whether the class accesses the field specified.
+     * @param ownerClassName name of the class declaring the field, <code>null</code> matches any class 
+     * @param name name of the field
+     * @param descriptor descriptor of the field, <code>null</code> matches any type
+     */
+    public boolean referencesField(String ownerClassName, String name, String descriptor) {
+        return referencesMember(CONSTANT_FIELDREF, CONSTANT_FIELDREF, ownerClassName, name, descriptor);
+    }
+
+    /**
+     * Checks whether the class invokes the method specified (either class or interface one).
+     * @param ownerClassName name of the class declaring the method, <code>null</code> matches any class 
+     * @param name name of the method
+     * @param descriptor descriptor of the method, <code>null</code> matches any overload
+     */
+    public boolean referencesMethod(String ownerClassName, String name, String descriptor) {
+        return referencesMember(CONSTANT_METHODREF, CONSTANT_INTERFACE_METHODREF, ownerClassName, name, descriptor);
+    }
+    
+    private boolean referencesMember(int tag1, int tag2, String ownerClassName, String name, String descriptor) {
+        if (null == name) {
+            throw new IllegalArgumentException("\"name\" may not be null");
+        }
+        // Fast reject: member name should be present anyway
+        if (!referencesUtf8(name)) {
+            return false;
+        }
+        String ownerInternalName = null == ownerClassName ? null : internalNameOf(ownerClassName);
+        for (int i = 1; i < offsets.length; i++) {
+            int offset = offsets[i];
+            if (offset == 0 || (b[offset] != tag1 && b[offset] != tag2)) {
+                continue;
+            }
+            if (null != ownerInternalName && 
+                !isClassNamed(readUnsignedShort(b, offset + 1), CONSTANT_CLASS, ownerInternalName)) {
+                continue;
+            }
+            int nameAndType = entry(readUnsignedShort(b, offset + 3), CONSTANT_NAME_AND_TYPE);
+            if (nameAndType > 0 && 
+                isUtf8(readUnsignedShort(b, nameAndType + 1), name) &&
+                (null == descriptor || isUtf8(readUnsignedShort(b, nameAndType + 3), descriptor))) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    private boolean isClassNamed(int index, int tag, String internalName) {
+        int offset = entry(index, tag);
+        return offset > 0 && isUtf8(readUnsignedShort(b, offset + 1), internalName);
+    }
+    
+    private boolean isUtf8(int index, String value) {
+        int offset = entry(index, CONSTANT_UTF8);
+        return offset > 0 && utf8Equals(offset, value);
+    }
+    
+    private int entry(int index, int tag) {
+        if (index <= 0 || index >= offsets.length) {
+            return 0;
+        }
+        int offset = offsets[index];
+        return offset > 0 && b[offset] == tag ? offset : 0;
+    }
+    
+    private boolean utf8Equals(int offset, String value) {
+        int length = readUnsignedShort(b, offset + 1);
+        int valueLength = value.length();
+        // Every char takes 1 to 3 bytes in modified UTF-8
+        if (length < valueLength || length > valueLength * 3) {
+            return false;
+        }
+        int i = offset + 3;
+        int end = i + length;
+        int j = 0;
+        while (i < end) {
+            if (j == valueLength) {
+                return false;
+            }
+            int c = b[i++] & 0xFF;
+            if ((c & 0x80) == 0) {
+                // 0xxxxxxx
+            } else if ((c & 0xE0) == 0xC0) {
+                // 110xxxxx 10xxxxxx
+                c = ((c & 0x1F) << 6) | (b[i++] & 0x3F);
+            } else {
+                // 1110xxxx 10xxxxxx 10xxxxxx
+                c = ((c & 0x0F) << 12) | ((b[i++] & 0x3F) << 6) | (b[i++] & 0x3F);
+            }
+            if (c != value.charAt(j++)) {
+                return false;
+            }
+        }
+        return j == valueLength;
+    }
+    
+    private static String internalNameOf(String className) {
+        if (null == className) {
+            throw new IllegalArgumentException("\"className\" may not be null");
+        }
+        return className.replace('.', '/');
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant locks for (owner, name) pairs. Every pair gets its own lock, so unrelated 
+ * pairs never contend or block each other; a lock exists only while it is held or 
+ * awaited. Unlike monitors these locks do not pin virtual threads to their carriers.
+ */
+final class KeyedLocks {
+    private final ConcurrentMap<Key, Entry> locks = new ConcurrentHashMap<Key, Entry>();
+    
+    /**
+     * Acquires the lock of the pair
+     * @return handle to pass to {@link #unlock(Object)}
+     */
+    Object lock(Object owner, String name) {
+        Key key = new Key(owner, name);
+        while (true) {
+            Entry entry = locks.get(key);
+            if (null == entry) {
+                Entry newEntry = new Entry(key);
+                entry = locks.putIfAbsent(key, newEntry);
+                if (null == entry) {
+                    newEntry.lock.lock();
+                    return newEntry;
+                }
+            }
+            int users = entry.users.get();
+            // Zero users means the entry is being removed, retry with a new one
+            if (users > 0 && entry.users.compareAndSet(users, users + 1)) {
+                entry.lock.lock();
+                return entry;
+            }
+        }
+    }
+    
+    void unlock(Object handle) {
+        Entry entry = (Entry)handle;
+        entry.lock.unlock();
+        if (entry.users.decrementAndGet() == 0) {
+            locks.remove(entry.key, entry);
+        }
+    }
+    
+    private static final class Entry {
+        final Key key;
+        final ReentrantLock lock = new ReentrantLock();
+        final AtomicInteger users = new AtomicInteger(1);
+        
+        Entry(Key key) {
+            this.key = key;
+        }
+    }
+    
+    private static final class Key {
+        private final Object owner;
+        private final String name;
+        
+        Key(Object owner, String name) {
+            this.owner = owner;
+            this.name = name;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(owner) * 31 + name.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key that = (Key)other;
+            return owner == that.owner && name.equals(that.name);
+        }
+    }
+}
@@ -35,8 +35,6 @@ import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
-import java.util.Map;
-import java.util.WeakHashMap;
 
 public abstract class PortableClassFileTransformer implements ClassFileTransformer {
     
@@ -80,20 +78,14 @@ public abstract class PortableClassFileTransformer implements ClassFileTransform
     }
     
     
-    private static final Map<ClassLoader, ClassEmitterFactory> CLASS_EMITTER_FACTORY_BY_LOADER = new WeakHashMap<ClassLoader, PortableClassFileTransformer.ClassEmitterFactory>();
     private static ClassEmitterFactory resolveClassEmitterFactory(final ClassLoader loader) {
-        synchronized (CLASS_EMITTER_FACTORY_BY_LOADER) {
-            ClassEmitterFactory result = CLASS_EMITTER_FACTORY_BY_LOADER.get(loader);
-            if (null == result) {
-                result = new ClassEmitterFactory() {
-                    @Override
-                    public ClassEmitter create(boolean mandatory) {
-                        return ClassEmitters.of(null, loader, mandatory);
-                    }
-                };
-                CLASS_EMITTER_FACTORY_BY_LOADER.put(loader, result);
+        // Emitters themselves are cached per class loader by ClassEmitters;
+        // the factory should not be cached in a weak map since it holds the loader strongly
+        return new ClassEmitterFactory() {
+            @Override
+            public ClassEmitter create(boolean mandatory) {
+                return ClassEmitters.of(null, loader, mandatory);
             }
-            return result;
-        }
+        };
     }
 }
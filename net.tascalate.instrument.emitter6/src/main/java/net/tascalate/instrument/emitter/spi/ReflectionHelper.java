@@ -35,8 +35,7 @@ class ReflectionHelper {
     private ReflectionHelper() {}
     
     static String getClassName(byte[] bytes) {
-        return new ClassHeaderReader(bytes).getClassName()
-                                           .replace('/', '.'); 
+        return ClassFileHeader.classNameOf(bytes);
     }
     
     static String packageNameOf(String className) {
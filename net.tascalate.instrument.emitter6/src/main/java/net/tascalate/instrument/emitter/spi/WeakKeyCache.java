@@ -0,0 +1,121 @@
+/**
+ * BSD 3-Clause License
+ *
+ * Copyright (c) 2019-2022, Valery Silaev
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * * Neither the name of the copyright holder nor the names of its
+ *   contributors may be used to endorse or promote products derived from
+ *   this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package net.tascalate.instrument.emitter.spi;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Concurrent cache with weak identity keys (class loaders, modules).
+ * Values must not reference their keys strongly, otherwise entries 
+ * are never evicted.
+ */
+final class WeakKeyCache<K, V> {
+    private final ConcurrentMap<Object, V> entries = new ConcurrentHashMap<Object, V>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<K>();
+    
+    V get(K key) {
+        return entries.get(new LookupKey(key));
+    }
+    
+    /**
+     * Stores the value unless there is one already
+     * @return the value associated with the key after the call
+     */
+    V putIfAbsent(K key, V value) {
+        expungeStaleEntries();
+        V previous = entries.putIfAbsent(new WeakKey<K>(key, queue), value);
+        return null == previous ? value : previous;
+    }
+    
+    private void expungeStaleEntries() {
+        Object ref;
+        while (null != (ref = queue.poll())) {
+            entries.remove(ref);
+        }
+    }
+    
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+        
+        WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            hash = System.identityHashCode(key);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            } else if (other instanceof WeakKey) {
+                Object referent = get();
+                return null != referent && referent == ((WeakKey<?>)other).get();
+            } else if (other instanceof LookupKey) {
+                Object referent = get();
+                return null != referent && referent == ((LookupKey)other).key;
+            } else {
+                return false;
+            }
+        }
+    }
+    
+    private static final class LookupKey {
+        final Object key;
+        
+        LookupKey(Object key) {
+            this.key = key;
+        }
+        
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (other instanceof WeakKey) {
+                return key == ((WeakKey<?>)other).get();
+            } else if (other instanceof LookupKey) {
+                return key == ((LookupKey)other).key;
+            } else {
+                return false;
+            }
+        }
+    }
+}
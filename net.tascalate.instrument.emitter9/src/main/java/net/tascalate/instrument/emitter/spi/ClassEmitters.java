@@ -33,6 +33,9 @@ package net.tascalate.instrument.emitter.spi;
 
 import static net.tascalate.instrument.emitter.spi.ReflectionHelper.getBestClassLoader;
 
+import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
 
 import net.tascalate.instrument.emitter.api.AbstractOpenPackage;
@@ -47,6 +50,93 @@ public final class ClassEmitters {
         return ReflectionHelper.getClassName(classBytes);
     }
     
+    /**
+     * Checks whether hidden classes may be defined, i.e. the code runs on Java 15 or above
+     * @return <code>true</code> if {@link #ofHidden(Object, HiddenClassOption...)} is supported
+     */
+    public static boolean isHiddenClassSupported() {
+        return HiddenClassSupport.isSupported();
+    }
+    
+    /**
+     * <p>Creates an emitter that defines hidden classes in the nest / package of the host class.
+     * Hidden classes are not discoverable by name, so they are suitable for auxiliary 
+     * generated classes only. Without {@link HiddenClassOption#STRONG} option hidden classes 
+     * may be unloaded independently of their class loader once unreferenced.
+     * <p>The host may be specified either as a class or as a <code>java.lang.invoke.MethodHandles.Lookup</code>
+     * with full privilege access created by the host class itself. Since Java 14 a class may be used 
+     * only when it resides in the same module as this library (like for Java Agents and 
+     * applications both on the class path) -- otherwise private lookup loses module access 
+     * that is required to define hidden classes.
+     * <p>Class files should declare classes in the same package as the host class; 
+     * protection domain passed to the emitter is ignored -- the one of the host class is used.
+     * @param hostClassOrLookup the class or the lookup that provides access context for hidden classes 
+     * @param options hidden class options
+     * @return hidden class emitter
+     * @throws IllegalStateException if hidden classes are not supported by the current Java version
+     * or the access to the host class is insufficient
+     */
+    public static ClassEmitter ofHidden(Object hostClassOrLookup, HiddenClassOption... options) {
+        if (null == hostClassOrLookup) {
+            throw new IllegalArgumentException("\"hostClassOrLookup\" may not be null");
+        }
+        return HiddenClassSupport.create(hostClassOrLookup, options);
+    }
+    
+    /**
+     * Defines a set of interdependent classes with the emitter supplied. Super-types 
+     * are defined before sub-types regardless of the order of <code>classBytes</code>.
+     * @param emitter the emitter to use, emitters that implement {@link BatchClassEmitter} 
+     * define classes more efficiently
+     * @param classBytes class files of classes to define
+     * @param protectionDomain protection domain of classes
+     * @return map of defined classes by binary name, in the order of definition
+     * @throws ClassEmitterException if any class may not be defined
+     */
+    public static Map<String, Class<?>> defineClasses(ClassEmitter emitter, 
+                                                      Collection<byte[]> classBytes, 
+                                                      ProtectionDomain protectionDomain) throws ClassEmitterException {
+        if (emitter instanceof BatchClassEmitter) {
+            return ((BatchClassEmitter)emitter).defineClasses(classBytes, protectionDomain);
+        } else {
+            return ClassBatch.defineClasses(emitter, classBytes, protectionDomain);
+        }
+    }
+    
+    /**
+     * Wraps the emitter so that concurrent requests to define the same class are coalesced 
+     * into a single definition shared by all requesters. Once a class is defined, 
+     * subsequent requests return it right away. Duplicate class definitions caused 
+     * by classes defined elsewhere in the meantime are resolved to the existing class
+     * rather than reported as errors. Definitions are tracked per class loader, 
+     * so all coalescing emitters of the same class loader cooperate regardless of 
+     * the emitter wrapped. The wrapper is useless for hidden class emitters.
+     * @param emitter the emitter to wrap
+     * @param classLoaderOrModule the class loader or the module where classes are defined, 
+     * may be <code>null</code> for the bootstrap class loader
+     * @return coalescing class emitter
+     */
+    public static ClassEmitter coalescing(ClassEmitter emitter, Object classLoaderOrModule) {
+        if (null == emitter) {
+            throw new IllegalArgumentException("\"emitter\" may not be null");
+        }
+        if (emitter instanceof CoalescingClassEmitter) {
+            return emitter;
+        }
+        if (null == classLoaderOrModule || classLoaderOrModule instanceof ClassLoader) {
+            return new CoalescingClassEmitter(emitter, (ClassLoader)classLoaderOrModule);
+        } else if (classLoaderOrModule instanceof Module) {
+            // Class names are unique per class loader rather than per module
+            return new CoalescingClassEmitter(emitter, ((Module)classLoaderOrModule).getClassLoader());
+        } else {
+            throw new IllegalArgumentException(
+                "Second parameter should be either null" + 
+                " or instance of " + ClassLoader.class.getName() + 
+                " or instance of " + Module.class.getName()
+            );
+        }
+    }
+    
     public static ClassEmitter of(ClassLoader classLoader) {
         return of(classLoader, true);
     }
@@ -93,7 +183,15 @@ public final class ClassEmitters {
                 AllowDynamicClasses settings = module.getAnnotation(AllowDynamicClasses.class);
                 if (settings != null) {
                     // Module is configured
-                    return byModule(module, settings, clazz, openPackage);
+                    // Re-use module emitter (already prepared) when it covers the package
+                    ModuleClassEmitter emitter = EMITTERS_BY_MODULE.get(module);
+                    if (null == emitter && settings.value().length > 0) {
+                        emitter = EMITTERS_BY_MODULE.putIfAbsent(module, byModule(module, settings, null));
+                    }
+                    if (null == emitter || !emitter.hasPackage(clazz.getPackageName())) {
+                        emitter = EMITTERS_BY_ANCHOR_CLASS.get(clazz);
+                    }
+                    return emitter.withOpenPackage(openPackage);
                 } else {
                     // Non-configured module
                     // The best we can do is a single-package ModuleClassEmitters
@@ -105,7 +203,7 @@ public final class ClassEmitters {
                             // So it's necessary to add "read" access dynamically
                             SELF_MODULE.addReads(module);
                         }
-                        return new ModuleClassEmitter(module, new Class[] {clazz}, OpenPackageAction.NOP /* already opened */);
+                        return EMITTERS_BY_ANCHOR_CLASS.get(clazz);
                     } else {
                         // In fact this will throw exception that explains everything
                         return byClassLoader(
@@ -119,12 +217,18 @@ public final class ClassEmitters {
             }
         } else if (moduleOrClass instanceof Module) {
             Module module = (Module)moduleOrClass;
-            AllowDynamicClasses settings = module.getAnnotation(AllowDynamicClasses.class);
-            if (settings != null) {
+            ModuleClassEmitter emitter = EMITTERS_BY_MODULE.get(module);
+            if (null == emitter) {
+                AllowDynamicClasses settings = module.getAnnotation(AllowDynamicClasses.class);
+                emitter = EMITTERS_BY_MODULE.putIfAbsent(
+                    module, settings != null ? byModule(module, settings, null) : NON_CONFIGURED_MODULE
+                );
+            }
+            if (emitter != NON_CONFIGURED_MODULE) {
                 // Module is configured
                 // TODO what if classLoader supplied is Factory?
                 // what scenario should win?
-                return byModule(module, settings, null, openPackage);
+                return emitter.withOpenPackage(openPackage);
             } else {
                 // Non-configured module
                 // try our best with class loaders
@@ -141,10 +245,9 @@ public final class ClassEmitters {
         }
     }
     
-    private static ClassEmitter byModule(Module module, 
-                                         AllowDynamicClasses settings, 
-                                         Class<?> extraClass,
-                                         OpenPackageAction openPackage) {
+    private static ModuleClassEmitter byModule(Module module, 
+                                               AllowDynamicClasses settings, 
+                                               Class<?> extraClass) {
         Class<? extends AbstractOpenPackage>[] settingsClasses = settings.value();
         Class<?>[] packageClasses;
         if (extraClass == null) {
@@ -169,7 +272,7 @@ public final class ClassEmitters {
             SELF_MODULE.addReads(module);
         }
 
-        return new ModuleClassEmitter(module, packageClasses, openPackage);        
+        return new ModuleClassEmitter(module, packageClasses);
     }
     
     private static ClassEmitter byClassLoader(ClassLoader classLoader, boolean mandatory, String extraMessage) {
@@ -177,15 +280,19 @@ public final class ClassEmitters {
         if (classLoader instanceof ClassEmitter) {
             // Custom class loader that defines method explicitly
             return (ClassEmitter)classLoader;
+        }
+        ClassEmitter cached = EMITTERS_BY_CLASS_LOADER.get(classLoader);
+        if (null != cached) {
+            return cached;
         } else if (UnsafeSupport.isSupported()) {
             // Short flirt with Java 9 / 10 
-            return new UnsafeEmitter(classLoader);
+            return EMITTERS_BY_CLASS_LOADER.putIfAbsent(classLoader, new UnsafeEmitter(classLoader));
         } else if (CLASS_LOADER_EMITTERS_SUPPORTED) {
             // Good-old Java 8 class loader reflection
             // if Java 9 is started with option
             // --add-opens java.base/java.lang=net.tascalate.instrument.emitter
             // or to all unnamed modules and we are shaded inside unnamed module
-            return new ClassLoaderEmitter(classLoader);
+            return EMITTERS_BY_CLASS_LOADER.putIfAbsent(classLoader, new ClassLoaderEmitter(classLoader));
         } else {
             // Out of luck on this path
             if (mandatory) {
@@ -213,6 +320,25 @@ public final class ClassEmitters {
         return CLASS_LOADER_EMITTERS_SUPPORTED || UnsafeSupport.isSupported();
     }
     
+    // Emitters hold both class loaders and modules weakly, so eviction works
+    private static final WeakKeyCache<ClassLoader, ClassEmitter> EMITTERS_BY_CLASS_LOADER = new WeakKeyCache<>();
+    private static final WeakKeyCache<Module, ModuleClassEmitter> EMITTERS_BY_MODULE = new WeakKeyCache<>();
+    private static final ModuleClassEmitter NON_CONFIGURED_MODULE = new ModuleClassEmitter(null, new Class<?>[0]);
+    // Emitters for classes outside of the packages configured by the module (if any)
+    // are stored within the class itself, like ModuleClassEmitter does for its delegates
+    private static final ClassValue<ModuleClassEmitter> EMITTERS_BY_ANCHOR_CLASS = new ClassValue<ModuleClassEmitter>() {
+        @Override
+        protected ModuleClassEmitter computeValue(Class<?> anchorClass) {
+            Module module = anchorClass.getModule();
+            AllowDynamicClasses settings = module.getAnnotation(AllowDynamicClasses.class);
+            if (null != settings) {
+                return byModule(module, settings, anchorClass);
+            } else {
+                return new ModuleClassEmitter(module, new Class<?>[] {anchorClass});
+            }
+        }
+    };
+    
     private static Module SELF_MODULE;
     private static boolean CLASS_LOADER_EMITTERS_SUPPORTED;
     static {
@@ -35,36 +35,88 @@ import java.lang.invoke.MethodHandles;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
 import java.security.ProtectionDomain;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import net.tascalate.instrument.emitter.api.AbstractOpenPackage;
 import net.tascalate.instrument.emitter.api.AllowDynamicClasses;
 
-class ModuleClassEmitter implements ClassEmitter {
+class ModuleClassEmitter implements BatchClassEmitter {
 
     private final WeakReference<Module> targetModule;
-    private final List<WeakReference<Class<?>>> packageClasses;
-    private final OpenPackageAction openPackage;
+    // Immutable after construction, hence safe for concurrent reads
+    private final Map<String, WeakReference<Class<?>>> packageClasses;
+    // Whether all packages were opened at once by some client
+    private volatile boolean packagesOpened;
     private final MethodHandles.Lookup selfLookup = MethodHandles.lookup();
-    private final Map<String, WeakReference<MethodHandles.Lookup>> cachedLookupRefs = new HashMap<>();
+    // Emitters are stored within the package (anchor) class itself,
+    // so they live exactly as long as the anchor class does 
+    // and are resolved without any locking once computed
+    private final ClassValue<ClassEmitter> cachedEmitters = new ClassValue<ClassEmitter>() {
+        @Override
+        protected ClassEmitter computeValue(Class<?> packageClass) {
+            try {
+                return toClassEmitter(lookupInternal(packageClass));
+            } catch (ClassEmitterException ex) {
+                throw new LookupFailure(ex);
+            }
+        }
+    };
 
-    ModuleClassEmitter(Module targetModule, Class<?>[] packageClasses, OpenPackageAction openPackage) {
+    ModuleClassEmitter(Module targetModule, Class<?>[] packageClasses) {
         this.targetModule = new WeakReference<>(targetModule);
-        this.packageClasses = Stream.of(packageClasses)
-                                    .map(ModuleClassEmitter::weakReferenceOf)
-                                    .collect(Collectors.toList());
-        this.openPackage = openPackage;
+        Map<String, WeakReference<Class<?>>> packageIndex = new HashMap<>();
+        for (Class<?> packageClass : packageClasses) {
+            // First class wins for duplicate packages
+            packageIndex.putIfAbsent(packageClass.getPackageName(), weakReferenceOf(packageClass));
+        }
+        this.packageClasses = packageIndex;
+    }
+    
+    /**
+     * Emitters are shared by all clients, while the way to open packages
+     * on demand is a client's choice, so it's supplied per client
+     */
+    BatchClassEmitter withOpenPackage(OpenPackageAction openPackage) {
+        if (OpenPackageAction.NOP == openPackage) {
+            return this;
+        } else {
+            return new BatchClassEmitter() {
+                @Override
+                public Class<?> defineClass(byte[] classBytes, ProtectionDomain protectionDomain) throws ClassEmitterException {
+                    return ModuleClassEmitter.this.defineClass(classBytes, protectionDomain, openPackage);
+                }
+                
+                @Override
+                public Map<String, Class<?>> defineClasses(Collection<byte[]> classBytes, ProtectionDomain protectionDomain) throws ClassEmitterException {
+                    return ModuleClassEmitter.this.defineClasses(classBytes, protectionDomain, openPackage);
+                }
+                
+                @Override
+                public String toString() {
+                    return ModuleClassEmitter.this.toString();
+                }
+            };
+        }
     }
     
     @Override
     public Class<?> defineClass(byte[] classBytes, ProtectionDomain protectionDomain) throws ClassEmitterException {
+        return defineClass(classBytes, protectionDomain, OpenPackageAction.NOP);
+    }
+    
+    private Class<?> defineClass(byte[] classBytes, 
+                                 ProtectionDomain protectionDomain, 
+                                 OpenPackageAction openPackage) throws ClassEmitterException {
         String packageName = ReflectionHelper.packageNameOf(ReflectionHelper.getClassName(classBytes));
-        ClassEmitter delegate = create(packageName);
+        ClassEmitter delegate = create(packageName, openPackage);
         if (null == delegate) {
             throw new ClassEmitterException("No class emitter available for package " + packageName);
         } else {
@@ -72,25 +124,82 @@ class ModuleClassEmitter implements ClassEmitter {
         }
     }
 
-    private ClassEmitter create(String packageName) throws ClassEmitterException {
-        MethodHandles.Lookup lookup;
-        synchronized (cachedLookupRefs) {
-            WeakReference<MethodHandles.Lookup> lookupRef = cachedLookupRefs.get(packageName);
-            lookup = lookupRef == null ? null : lookupRef.get();
-            if (null == lookup) {
-                lookup = lookupInternal(packageName);
-                if (null != lookup) {
-                    cachedLookupRefs.put(packageName, new WeakReference<>(lookup));
+    @Override
+    public Map<String, Class<?>> defineClasses(Collection<byte[]> classBytes, ProtectionDomain protectionDomain) throws ClassEmitterException {
+        return defineClasses(classBytes, protectionDomain, OpenPackageAction.NOP);
+    }
+    
+    private Map<String, Class<?>> defineClasses(Collection<byte[]> classBytes, 
+                                                ProtectionDomain protectionDomain, 
+                                                OpenPackageAction openPackage) throws ClassEmitterException {
+        Map<String, Class<?>> result = new LinkedHashMap<>();
+        for (List<ClassBatch.Entry> group : ClassBatch.groupsOf(classBytes)) {
+            // Single lookup per package
+            String packageName = group.get(0).packageName;
+            ClassEmitter delegate = create(packageName, openPackage);
+            if (null == delegate) {
+                throw new ClassEmitterException("No class emitter available for package " + packageName);
+            }
+            for (ClassBatch.Entry entry : group) {
+                result.put(entry.className, delegate.defineClass(entry.classBytes, protectionDomain));
+            }
+        }
+        return result;
+    }
+
+    boolean hasPackage(String packageName) {
+        return packageClasses.containsKey(packageName);
+    }
+    
+    private ClassEmitter create(String packageName, OpenPackageAction openPackage) throws ClassEmitterException {
+        WeakReference<Class<?>> packageClassRef = packageClasses.get(packageName);
+        Class<?> packageClass = null == packageClassRef ? null : packageClassRef.get();
+        if (null == packageClass) {
+            // Either not supported or unloaded
+            return null;
+        }
+        try {
+            return cachedEmitters.get(packageClass);
+        } catch (PackageNotOpen ex) {
+            Module target = ex.target;
+            Module self   = getClass().getModule();
+            if (openPackages(packageName, target, self, openPackage)) {
+                return create(packageName, OpenPackageAction.NOP);
+            }
+            throw new IllegalStateException(
+                "Module " + target.getName() + " shows an intent to support instrumentation " +
+                "(annotation @" + AllowDynamicClasses.class.getSimpleName() + " is present " +
+                "with " + AbstractOpenPackage.class.getSimpleName() + " = " + packageClass.getName() + "), " +
+                "however package " + packageName + " is not open for module " + self.getName()
+            );
+        } catch (LookupFailure ex) {
+            throw ex.getCause();
+        }
+    }
+    
+    private boolean openPackages(String packageName, Module target, Module self, OpenPackageAction openPackage) {
+        if (!packagesOpened) {
+            // First time the module lacks access -- open all packages listed at once
+            // rather than redefine the module for every package on demand
+            Set<String> closedPackages = new HashSet<>();
+            for (String candidate : packageClasses.keySet()) {
+                if (null != candidate && !target.isOpen(candidate, self)) {
+                    closedPackages.add(candidate);
                 }
             }
+            if (openPackage.run(closedPackages, target, self)) {
+                packagesOpened = true;
+                return true;
+            }
         }
-        return toClassEmitter(lookup);
+        return openPackage.run(packageName, target, self);
     }
     
     @Override
     public String toString() {
         String packages =
-        packageClasses.stream()
+        packageClasses.values()
+                      .stream()
                       .map(Reference::get)
                       .filter(Objects::nonNull)
                       .map(Class::getPackageName)
@@ -101,57 +210,63 @@ class ModuleClassEmitter implements ClassEmitter {
                                       ", module="  + moduleName + "]"; 
     }
 
-    private MethodHandles.Lookup lookupInternal(String packageName) throws ClassEmitterException {
+    private MethodHandles.Lookup lookupInternal(Class<?> packageClass) throws ClassEmitterException {
         Module target = targetModule.get();
         Module self   = getClass().getModule();
         if (null == target) {
             throw new IllegalStateException("Module is unloaded");
         }
-        for (WeakReference<Class<?>> packageClassRef : packageClasses) {
-            Class<?> packageClass = packageClassRef.get();
-            if (null == packageClass) {
-                // May be unloaded
-                continue;
-            }
-            if (packageClass.getPackageName().equals(packageName)) {
-                // Sanity check first to help app developer follow our rules
-                if (target.isOpen(packageName, self) || openPackage.run(packageName, target, self)) {
-                    // Allows concrete implementations of AbstractOpenPackage
-                    // to have [package-]private constructor
-                    try {
-                        return MethodHandles.privateLookupIn(packageClass, selfLookup);
-                    } catch (IllegalAccessException e) {
-                        throw new ClassEmitterException(e);
-                    }
-                } else {
-                    throw new IllegalStateException(
-                        "Module " + target.getName() + " shows an intent to support instrumentation " +
-                        "(annotation @" + AllowDynamicClasses.class.getSimpleName() + " is present " +
-                        "with " + AbstractOpenPackage.class.getSimpleName() + " = " + packageClass.getName() + "), " +
-                        "however package " + packageName + " is not open for module " + self.getName()
-                    );
-                }
+        // Sanity check first to help app developer follow our rules
+        if (target.isOpen(packageClass.getPackageName(), self)) {
+            // Allows concrete implementations of AbstractOpenPackage
+            // to have [package-]private constructor
+            try {
+                return MethodHandles.privateLookupIn(packageClass, selfLookup);
+            } catch (IllegalAccessException e) {
+                throw new ClassEmitterException(e);
             }
+        } else {
+            // Not cached by ClassValue, so the package may be opened and lookup retried
+            throw new PackageNotOpen(target);
         }
-        return null;
     }
     
     private static ClassEmitter toClassEmitter(MethodHandles.Lookup lookup) {
-        if (null == lookup) {
-            return null;
-        } else {
-            return (bytes, domain) -> {
-                try {
-                    return lookup.defineClass(bytes);
-                } catch (IllegalAccessException e) {
-                    throw new ClassEmitterException(e);
-                }
-            }; 
-        }
+        return (bytes, domain) -> {
+            try {
+                return lookup.defineClass(bytes);
+            } catch (IllegalAccessException e) {
+                throw new ClassEmitterException(e);
+            }
+        }; 
     }
     
     private static <T> WeakReference<Class<?>> weakReferenceOf(Class<T> cls) {
         Class<?> casted = cls;
         return new WeakReference<>(casted);
     }
+    
+    private static final class PackageNotOpen extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        final transient Module target;
+        
+        PackageNotOpen(Module target) {
+            super(null, null, false, false);
+            this.target = target;
+        }
+    }
+    
+    private static final class LookupFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        LookupFailure(ClassEmitterException cause) {
+            super(cause);
+        }
+        
+        @Override
+        public synchronized ClassEmitterException getCause() {
+            return (ClassEmitterException)super.getCause();
+        }
+    }
 }
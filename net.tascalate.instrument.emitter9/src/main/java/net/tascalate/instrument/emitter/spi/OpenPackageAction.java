@@ -31,9 +31,23 @@
  */
 package net.tascalate.instrument.emitter.spi;
 
+import java.util.Set;
+
 abstract class OpenPackageAction {
     abstract boolean run(String packageName, Module packageModule, Module accessorModule);
     
+    /**
+     * Opens several packages of the same module at once, 
+     * implementations should override it when this may be done in a single step
+     */
+    boolean run(Set<String> packageNames, Module packageModule, Module accessorModule) {
+        boolean result = true;
+        for (String packageName : packageNames) {
+            result &= run(packageName, packageModule, accessorModule);
+        }
+        return result;
+    }
+    
     static final OpenPackageAction NOP = new OpenPackageAction() {
         @Override
         boolean run(String packageName, Module packageModule, Module accessorModule) {
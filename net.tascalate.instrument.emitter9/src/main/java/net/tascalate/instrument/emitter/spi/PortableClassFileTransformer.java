@@ -36,6 +36,9 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.lang.instrument.Instrumentation;
 import java.security.ProtectionDomain;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 public abstract class PortableClassFileTransformer implements ClassFileTransformer {
     
@@ -50,11 +53,22 @@ public abstract class PortableClassFileTransformer implements ClassFileTransform
         this.openPackage = new OpenPackageAction() {
             @Override
             boolean run(String packageName, Module packageModule, Module accessorModule) {
+                return run(Collections.singleton(packageName), packageModule, accessorModule);
+            }
+            
+            @Override
+            boolean run(Set<String> packageNames, Module packageModule, Module accessorModule) {
+                // Single module redefinition for all packages
+                Set<Module> accessors = Collections.singleton(accessorModule);
+                Map<String, Set<Module>> extraOpens = new HashMap<>();
+                for (String packageName : packageNames) {
+                    extraOpens.put(packageName, accessors);
+                }
                 instrumentation.redefineModule(
                     packageModule, 
                     Collections.emptySet(), 
                     Collections.emptyMap(), 
-                    Collections.singletonMap(packageName, Collections.singleton(accessorModule)), 
+                    extraOpens, 
                     Collections.emptySet(), 
                     Collections.emptyMap()
                 );
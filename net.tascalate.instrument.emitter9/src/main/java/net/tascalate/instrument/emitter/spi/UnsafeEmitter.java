@@ -39,10 +39,14 @@ import java.security.AccessController;
 import java.security.PrivilegedActionException;
 import java.security.PrivilegedExceptionAction;
 import java.security.ProtectionDomain;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import sun.misc.Unsafe;
 
-class UnsafeEmitter implements ClassEmitter {
+class UnsafeEmitter implements BatchClassEmitter {
     private final Reference<ClassLoader> classLoaderRef;
     private final Unsafe unsafe;
     private final AccessControlContext accessCtx;
@@ -54,17 +58,32 @@ class UnsafeEmitter implements ClassEmitter {
     private UnsafeEmitter(ClassLoader classLoader, Unsafe unsafe_) {
         classLoaderRef = new WeakReference<ClassLoader>(classLoader);
         unsafe = unsafe_;
-        accessCtx = AccessController.getContext();
+        accessCtx = SecuritySupport.getContext();
     }
     
     @SuppressWarnings("removal")
     private Class<?> defineClass(String className, 
                                  byte[] classBytes, 
                                  ClassLoader classLoader,
-                                 ProtectionDomain protectionDomain) throws Exception {
+                                 ProtectionDomain protectionDomain) {
         return unsafe.defineClass(className, classBytes, 0, classBytes.length, classLoader, protectionDomain);
     }
     
+    private Map<String, Class<?>> defineClasses(List<List<ClassBatch.Entry>> groups,
+                                                ClassLoader classLoader,
+                                                ProtectionDomain protectionDomain) {
+        Map<String, Class<?>> result = new LinkedHashMap<>();
+        for (List<ClassBatch.Entry> group : groups) {
+            for (ClassBatch.Entry entry : group) {
+                result.put(
+                    entry.className, 
+                    defineClass(entry.className, entry.classBytes, classLoader, protectionDomain)
+                );
+            }
+        }
+        return result;
+    }
+    
     @Override
     public final Class<?> defineClass(final byte[] classBytes, 
                                       final ProtectionDomain protectionDomain) throws ClassEmitterException {
@@ -74,6 +93,9 @@ class UnsafeEmitter implements ClassEmitter {
         }
         
         final String className = ReflectionHelper.getClassName(classBytes);
+        if (!SecuritySupport.isPrivilegedActionRequired()) {
+            return defineClass(className, classBytes, classLoader, protectionDomain);
+        }
 
         try {
             return AccessController.doPrivileged(new PrivilegedExceptionAction<Class<?>>() {
@@ -93,6 +115,37 @@ class UnsafeEmitter implements ClassEmitter {
         }
     }
     
+    @Override
+    public final Map<String, Class<?>> defineClasses(final Collection<byte[]> classBytes,
+                                                     final ProtectionDomain protectionDomain) throws ClassEmitterException {
+        final ClassLoader classLoader = classLoaderRef.get();
+        if (null == classLoader) {
+            throw new IllegalStateException("ClassLoader is unloaded");
+        }
+        
+        final List<List<ClassBatch.Entry>> groups = ClassBatch.groupsOf(classBytes);
+        if (!SecuritySupport.isPrivilegedActionRequired()) {
+            return defineClasses(groups, classLoader, protectionDomain);
+        }
+
+        try {
+            return AccessController.doPrivileged(new PrivilegedExceptionAction<Map<String, Class<?>>>() {
+                
+                @Override
+                public Map<String, Class<?>> run() throws Exception {
+                    return defineClasses(groups, classLoader, protectionDomain);
+                }
+
+            }, accessCtx);
+        } catch (PrivilegedActionException ex) {
+            if (null != ex.getCause()) {
+                throw wrap(ex.getCause());
+            } else {
+                throw new ClassEmitterException(ex);
+            }
+        }
+    }
+    
     @Override
     public String toString() {
         return getClass().getName() + "[method=unsafe, supported-packages=<any>, " + describe() + "]"; 